@@ -0,0 +1,229 @@
+/*
+	Copyright 2009 Peter Hofmann
+
+	This file is part of Multifrac.
+
+	Multifrac is free software: you can redistribute it and/or modify it
+	under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Multifrac is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Multifrac. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package multifrac;
+
+import java.io.*;
+import java.security.*;
+
+/**
+ * Remembers which rows of a streamed render have already been written,
+ * so an interrupted render can be resumed. The state lives in a sidecar
+ * file next to the target ("image.tif.ckpt"):
+ *
+ *    0  int    MAGIC ("MFCP")
+ *    4  int    VERSION
+ *    8  long   key (see makeKey())
+ *   16  int    number of rows
+ *   20  ...    one bit per row, set if the row is done (MSB first)
+ *
+ * Rows must only be marked after they have been flushed to the target.
+ * If the program dies in between, those rows are simply rendered again.
+ */
+public class Checkpoint
+{
+	public static final int MAGIC   = 0x4D464350;
+	public static final int VERSION = 1;
+	public static final String SUFFIX = ".ckpt";
+
+	protected static final int SIZE_HEADER = 20;
+
+	/**
+	 * Build a key which identifies a render. Resuming is only possible
+	 * if the key matches. "kind" describes the target format.
+	 */
+	public static long makeKey(FractalParameters param, int w, int h,
+			int ss, String kind)
+	{
+		try
+		{
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(buf);
+			param.writeToStream(out);
+			out.writeInt(w);
+			out.writeInt(h);
+			out.writeInt(ss);
+			out.writeUTF(kind);
+			out.flush();
+
+			byte[] d = MessageDigest.getInstance("SHA-1").digest(
+					buf.toByteArray());
+
+			long key = 0;
+			for (int i = 0; i < 8; i++)
+				key = (key << 8) | (d[i] & 0xFF);
+			return key;
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException("Checkpoint: Could not build key.", e);
+		}
+	}
+
+	/**
+	 * The sidecar file for the given target.
+	 */
+	public static File sidecar(File target)
+	{
+		return new File(target.getPath() + SUFFIX);
+	}
+
+	/**
+	 * Load the checkpoint of "target" if there is one which belongs to
+	 * the same render. Returns null otherwise.
+	 */
+	public static Checkpoint load(File target, long key, int rows)
+	{
+		File f = sidecar(target);
+		if (!target.isFile() || !f.isFile())
+			return null;
+
+		try
+		{
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			if (raf.length() != SIZE_HEADER + (rows + 7) / 8
+					|| raf.readInt() != MAGIC
+					|| raf.readInt() != VERSION
+					|| raf.readLong() != key
+					|| raf.readInt() != rows)
+			{
+				raf.close();
+				return null;
+			}
+
+			Checkpoint c = new Checkpoint(f, raf, rows);
+			raf.readFully(c.bits);
+			return c;
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Create a new, empty checkpoint for "target".
+	 */
+	public static Checkpoint create(File target, long key, int rows)
+		throws IOException
+	{
+		File f = sidecar(target);
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		raf.setLength(0);
+		raf.writeInt(MAGIC);
+		raf.writeInt(VERSION);
+		raf.writeLong(key);
+		raf.writeInt(rows);
+
+		Checkpoint c = new Checkpoint(f, raf, rows);
+		raf.write(c.bits);
+		return c;
+	}
+
+
+	private File file = null;
+	private RandomAccessFile raf = null;
+	private int rows = 0;
+	private byte[] bits = null;
+
+	private Checkpoint(File f, RandomAccessFile raf, int rows)
+	{
+		this.file = f;
+		this.raf  = raf;
+		this.rows = rows;
+		bits = new byte[(rows + 7) / 8];
+	}
+
+	public int getRows()
+	{
+		return rows;
+	}
+
+	public synchronized boolean isDone(int row)
+	{
+		return (bits[row >> 3] & (0x80 >> (row & 7))) != 0;
+	}
+
+	/**
+	 * Check whether all rows from "from" to "to" (exclusive) are done.
+	 */
+	public synchronized boolean isDone(int from, int to)
+	{
+		for (int i = from; i < to; i++)
+			if (!isDone(i))
+				return false;
+		return true;
+	}
+
+	public synchronized int countDone()
+	{
+		int n = 0;
+		for (int i = 0; i < rows; i++)
+			if (isDone(i))
+				n++;
+		return n;
+	}
+
+	/**
+	 * Mark "num" rows starting at "row" as done and save that
+	 * information.
+	 */
+	public synchronized void markDone(int row, int num) throws IOException
+	{
+		if (raf == null)
+			return;
+
+		for (int i = row; i < row + num; i++)
+			bits[i >> 3] |= (0x80 >> (i & 7));
+
+		int from = row >> 3;
+		int to   = (row + num - 1) >> 3;
+		raf.seek(SIZE_HEADER + from);
+		raf.write(bits, from, to - from + 1);
+	}
+
+	/**
+	 * Close the file but keep it, so the render can be resumed.
+	 */
+	public synchronized void close()
+	{
+		if (raf == null)
+			return;
+
+		try
+		{
+			raf.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		raf = null;
+	}
+
+	/**
+	 * The render is complete, the checkpoint is no longer needed.
+	 */
+	public synchronized void delete()
+	{
+		close();
+		file.delete();
+	}
+}
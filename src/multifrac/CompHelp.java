@@ -146,14 +146,27 @@ public class CompHelp
 					new FileNameExtensionFilter(
 						"PNG & JPG (regular images)", "png", "jpg");
 
+				FileNameExtensionFilter tiles =
+					new FileNameExtensionFilter(
+						"Tile pyramid (Deep Zoom, XYZ)", "dzi", "xyz");
+				FileNameExtensionFilter raw =
+					new FileNameExtensionFilter(
+						"Raw values (for recoloring)", "mfr");
+
 				chooser.addChoosableFileFilter(png);
 				chooser.addChoosableFileFilter(tiff);
+				chooser.addChoosableFileFilter(raw);
+				chooser.addChoosableFileFilter(tiles);
 
 				// choose current filter
 				if (tiff.accept(old))
 					chooser.setFileFilter(tiff);
 				else if (png.accept(old))
 					chooser.setFileFilter(png);
+				else if (raw.accept(old))
+					chooser.setFileFilter(raw);
+				else if (tiles.accept(old))
+					chooser.setFileFilter(tiles);
 				else
 					chooser.setAcceptAllFileFilterUsed(true);
 
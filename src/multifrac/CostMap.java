@@ -0,0 +1,172 @@
+/*
+	Copyright 2009 Peter Hofmann
+
+	This file is part of Multifrac.
+
+	Multifrac is free software: you can redistribute it and/or modify it
+	under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Multifrac is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Multifrac. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package multifrac;
+
+import java.awt.*;
+
+/**
+ * Estimated cost of the rows of an image, taken from a small preview
+ * render. Rows close to the set take a lot longer than rows where all
+ * points escape right away, so work can be split up by cost instead of
+ * by number of rows.
+ *
+ * Costs are given in iterations. Each pixel is charged PIXEL_COST on top
+ * of that for coloring and transferring it.
+ */
+public class CostMap
+{
+	// Size of the preview. Iterations are capped to keep it fast, pixels
+	// which reach the cap are counted as inside.
+	public static final int PREVIEW_PIXELS = 16384;
+	public static final int PREVIEW_NMAX   = 10000;
+	public static final double PIXEL_COST  = 20.0;
+
+	private int width = 0;
+
+	// sum[i] is the cost of the rows 0 to i - 1.
+	private double[] sum = null;
+
+	private CostMap(int width, double[] sum)
+	{
+		this.width = width;
+		this.sum   = sum;
+	}
+
+	/**
+	 * Render a preview of about "pixels" pixels and build the map for
+	 * the full size of "param".
+	 */
+	public static CostMap preview(FractalParameters param, int pixels)
+	{
+		int w = param.getWidth();
+		int h = param.getHeight();
+
+		// Scale uniformly, so the preview shows the same area.
+		FractalParameters p = new FractalParameters(param);
+		int cap = Math.min(p.nmax, PREVIEW_NMAX);
+		p.nmax = cap;
+
+		double k = Math.min(1.0, Math.sqrt(pixels / ((double)w * h)));
+		p.updateSize(new Dimension(
+					Math.max(1, (int)(w * k)),
+					Math.max(1, (int)(h * k))));
+
+		FractalRenderer.Job sample = new FractalRenderer.Job(p, 1, 0, null);
+		sample.raw = true;
+		new FractalRenderer(sample, null).renderPass(0, sample.getHeight());
+
+		// Average cost of one pixel in each row of the preview.
+		int sw = sample.getWidth();
+		int sh = sample.getHeight();
+		int[] px = sample.getPixels();
+		double[] rows = new double[sh];
+		for (int y = 0; y < sh; y++)
+		{
+			double c = 0.0;
+			for (int x = 0; x < sw; x++)
+			{
+				float v = Float.intBitsToFloat(px[y * sw + x]);
+				if (v == FractalRenderer.RAW_INSIDE)
+					c += param.nmax;
+				else
+					c += Math.max(1.0, v * cap);
+			}
+			rows[y] = c / sw + PIXEL_COST;
+		}
+
+		// Each row of the image gets the cost of the preview row it falls
+		// into.
+		double[] sum = new double[h + 1];
+		for (int y = 0; y < h; y++)
+		{
+			int sy = Math.min(sh - 1, (int)((y + 0.5) * sh / h));
+			sum[y + 1] = sum[y] + rows[sy] * w;
+		}
+
+		return new CostMap(w, sum);
+	}
+
+	/**
+	 * A map with the same total cost but all rows being equal.
+	 */
+	public CostMap flatten()
+	{
+		int h = getHeight();
+		double row = total() / h;
+
+		double[] flat = new double[h + 1];
+		for (int y = 0; y < h; y++)
+			flat[y + 1] = row * (y + 1);
+
+		return new CostMap(width, flat);
+	}
+
+	public int getHeight()
+	{
+		return sum.length - 1;
+	}
+
+	/**
+	 * Cost of the rows "start" to "end" (exclusive).
+	 */
+	public double cost(int start, int end)
+	{
+		return sum[end] - sum[start];
+	}
+
+	/**
+	 * Cost of the whole image.
+	 */
+	public double total()
+	{
+		return sum[sum.length - 1];
+	}
+
+	/**
+	 * Average cost of one pixel.
+	 */
+	public double average()
+	{
+		return total() / ((double)width * getHeight());
+	}
+
+	/**
+	 * End of a piece beginning at row "start" which costs about "budget",
+	 * i.e. the first row where the budget is used up. A piece always has
+	 * at least one row.
+	 */
+	public int next(int start, double budget)
+	{
+		double goal = sum[start] + budget;
+
+		int lo = start + 1;
+		int hi = getHeight();
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (sum[mid] < goal)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+
+		return lo;
+	}
+}
@@ -20,6 +20,8 @@
 package multifrac;
 
 import java.awt.*;
+import java.io.*;
+import java.util.concurrent.atomic.*;
 import javax.swing.*;
 
 /**
@@ -28,11 +30,28 @@ import javax.swing.*;
 public class FractalRenderer extends Thread
 {
 	private static final double logTwoBaseTen = Math.log10(2.0);
+
+	/**
+	 * Raw jobs store Float.floatToRawIntBits() of the smooth iteration
+	 * value instead of a color. Points inside the set get this value.
+	 */
+	public static final float RAW_INSIDE = -1.0f;
+	public static final int RAW_INSIDE_BITS = Float.floatToRawIntBits(RAW_INSIDE);
 	
 
 	// Properties of a whole render process.
 	private Job myJob = null;
 	private int[] coordinator = null;
+
+	// Optional: Hand out rows in pieces of about "unit" estimated cost.
+	private CostMap costs = null;
+	private double unit = 0.0;
+
+	// Pieces per thread when planning by cost and the maximum number of
+	// rows a streaming thread buffers.
+	private static final int UNITS_PER_THREAD = 32;
+	private static final int MAX_STREAM_ROWS = 32;
+
 	public FractalRenderer(Job j, int[] c)
 	{
 		myJob = j;
@@ -52,6 +71,22 @@ public class FractalRenderer extends Thread
 		public int supersampling = 1;
 		public Publisher pub = null;
 		public boolean isCropped = false;
+		public boolean raw = false;
+
+		// Render a small preview first and split the image into pieces
+		// of equal estimated cost instead of equal size.
+		public boolean plan = false;
+
+		// Streaming: Finished rows are written to the target right away
+		// and there's no buffer for the whole image. Done rows are
+		// recorded in the checkpoint (if any) and skipped.
+		public StreamTarget target = null;
+		public Checkpoint checkpoint = null;
+		private IOException streamError = null;
+
+		// Rows of the stream target which are finished (or were done in
+		// an earlier run), counted by all threads for the progress bar.
+		private AtomicInteger streamed = new AtomicInteger(0);
 
 		private boolean canceled = false;
 
@@ -98,6 +133,11 @@ public class FractalRenderer extends Thread
 
 		public void resizeBack()
 		{
+			// Raw values can't be averaged, this has to be done after
+			// coloring them. Streamed images have already been resized.
+			if (raw || target != null)
+				return;
+
 			pixels = ImageOperations.resize2(
 					pixels,
 					getWidth(),
@@ -118,6 +158,52 @@ public class FractalRenderer extends Thread
 			return canceled;
 		}
 
+		/**
+		 * Number of rendered rows that make up one row of the stream
+		 * target. Colors are downscaled before streaming, raw values are
+		 * not.
+		 */
+		public int getStreamFactor()
+		{
+			return (raw ? 1 : supersampling);
+		}
+
+		/**
+		 * Number of rows of the stream target.
+		 */
+		public int getStreamHeight()
+		{
+			return getHeight() / getStreamFactor();
+		}
+
+		/**
+		 * Write finished rows to the stream target and record them in
+		 * the checkpoint.
+		 */
+		public void stream(int[] px, int row, int num) throws IOException
+		{
+			synchronized (target)
+			{
+				target.writeRows(px, 0, row, num);
+				target.flush();
+			}
+
+			if (checkpoint != null)
+				checkpoint.markDone(row, num);
+		}
+
+		synchronized public void setStreamError(IOException e)
+		{
+			if (streamError == null)
+				streamError = e;
+			canceled = true;
+		}
+
+		synchronized public IOException getStreamError()
+		{
+			return streamError;
+		}
+
 		@Override
 		public String toString()
 		{
@@ -204,6 +290,20 @@ public class FractalRenderer extends Thread
 	 * in the background.
 	 */
 	public void renderPass(int tstart, int tend)
+	{
+		// Choose starting index depending on buffer type
+		int index = 0;
+		if (!myJob.isCropped)
+			index = tstart * myJob.getWidth();
+
+		renderPass(tstart, tend, myJob.pixels, index);
+	}
+
+	/**
+	 * Render the rows "tstart" to "tend" into the given buffer, beginning
+	 * at "index".
+	 */
+	public void renderPass(int tstart, int tend, int[] pixels, int index)
 	{
 		// Mandelbrot Parameters
 		double x, y;
@@ -216,15 +316,6 @@ public class FractalRenderer extends Thread
 		double w = myJob.getWidth();
 		double muh = 0.0;
 
-		// ColorPower. This allows you to "move" the gradient as a
-		// whole.
-		double gradientPow = myJob.param.gradientPow;
-
-		// Choose starting index depending on buffer type
-		int index = 0;
-		if (!myJob.isCropped)
-			index = tstart * myJob.getWidth();
-
 		for (int coord_y = tstart; coord_y < tend; coord_y++)
 		{
 			//zeichY = (-1.0 + 2.0 * (double)coord_y * resrezi);
@@ -276,7 +367,9 @@ public class FractalRenderer extends Thread
 				if (n == nmax)
 				{
 					// Inside
-					myJob.pixels[index++] = myJob.param.colorInside.getRGB();
+					pixels[index++] = (myJob.raw
+							? RAW_INSIDE_BITS
+							: myJob.param.colorInside.getRGB());
 				}
 				else
 				{
@@ -284,44 +377,61 @@ public class FractalRenderer extends Thread
 					// Idea: http://linas.org/art-gallery/escape/smooth.html
 					muh = (double)n + 1.0f - Math.log10(Math.log10(Math.sqrt(sqr_abs_z))) / logTwoBaseTen;
 					muh /= nmax;
-					muh = Math.pow(muh, gradientPow);
 
-					// Linear interpolation between marks
-					if (muh >= 1.0)
-					{
-						// If muh is greater than or equal to 1, just use the last color.
-						myJob.pixels[index++] = myJob.param.gradient.get(myJob.param.gradient.size() - 1).color.getRGB();
-					}
+					if (myJob.raw)
+						pixels[index++] = Float.floatToRawIntBits((float)muh);
 					else
-					{
-						int i = 1;
+						pixels[index++] = colorize(myJob.param, muh);
+				}
+			}
+		}
+	}
 
-						// Find the first index where muh will be less than get(i).
-						// This will be (i + 1), so decrease i afterwards.
-						while (i < myJob.param.gradient.size() && muh > myJob.param.gradient.get(i).pos)
-							i++;
+	/**
+	 * Map a smooth iteration value (already divided by nmax) to a color
+	 * using the gradient of the given parameters. Negative values mean
+	 * "inside".
+	 */
+	public static int colorize(FractalParameters param, double muh)
+	{
+		if (muh < 0.0)
+			return param.colorInside.getRGB();
 
-						i--;
+		// ColorPower. This allows you to "move" the gradient as a
+		// whole.
+		muh = Math.pow(muh, param.gradientPow);
 
-						// Scale muh from 0 to 1 in the given interval.
-						double span = myJob.param.gradient.get(i + 1).pos - myJob.param.gradient.get(i).pos;
-						muh -= myJob.param.gradient.get(i).pos;
-						muh /= span;
+		// Linear interpolation between marks
+		if (muh >= 1.0)
+		{
+			// If muh is greater than or equal to 1, just use the last color.
+			return param.gradient.get(param.gradient.size() - 1).color.getRGB();
+		}
 
-						// Get the 2 colors and interpolate them linearly.
-						Color c1 = myJob.param.gradient.get(i).color;
-						Color c2 = myJob.param.gradient.get(i + 1).color;
+		int i = 1;
 
-						int r = (int)(c1.getRed() * (1.0 - muh))   + (int)(c2.getRed() * muh);
-						int g = (int)(c1.getGreen() * (1.0 - muh)) + (int)(c2.getGreen() * muh);
-						int b = (int)(c1.getBlue() * (1.0 - muh))  + (int)(c2.getBlue() * muh);
+		// Find the first index where muh will be less than get(i).
+		// This will be (i + 1), so decrease i afterwards.
+		while (i < param.gradient.size() && muh > param.gradient.get(i).pos)
+			i++;
 
-						// Convert it back to an RGB-integer.
-						myJob.pixels[index++] = 0xFF000000 + (r << 16) + (g << 8) + b;
-					}
-				}
-			}
-		}
+		i--;
+
+		// Scale muh from 0 to 1 in the given interval.
+		double span = param.gradient.get(i + 1).pos - param.gradient.get(i).pos;
+		muh -= param.gradient.get(i).pos;
+		muh /= span;
+
+		// Get the 2 colors and interpolate them linearly.
+		Color c1 = param.gradient.get(i).color;
+		Color c2 = param.gradient.get(i + 1).color;
+
+		int r = (int)(c1.getRed() * (1.0 - muh))   + (int)(c2.getRed() * muh);
+		int g = (int)(c1.getGreen() * (1.0 - muh)) + (int)(c2.getGreen() * muh);
+		int b = (int)(c1.getBlue() * (1.0 - muh))  + (int)(c2.getBlue() * muh);
+
+		// Convert it back to an RGB-integer.
+		return 0xFF000000 + (r << 16) + (g << 8) + b;
 	}
 
 	/**
@@ -330,6 +440,12 @@ public class FractalRenderer extends Thread
 	@Override
 	public void run()
 	{
+		if (myJob.target != null)
+		{
+			runStream();
+			return;
+		}
+
 		int bunch = 6;
 		int max = myJob.getHeight();
 
@@ -353,7 +469,10 @@ public class FractalRenderer extends Thread
 					return;
 
 				start = coordinator[0];
-				coordinator[0] += bunch;
+				if (costs != null)
+					coordinator[0] = costs.next(start, unit);
+				else
+					coordinator[0] += bunch;
 				end = coordinator[0];
 			}
 
@@ -373,6 +492,87 @@ public class FractalRenderer extends Thread
 		}
 	}
 
+	/**
+	 * Starting point of one render thread if the job is streamed. The
+	 * coordinator counts rows of the stream target. Each thread renders
+	 * into its own buffer, downscales it and hands it to the target.
+	 */
+	private void runStream()
+	{
+		int f = myJob.getStreamFactor();
+		int w = myJob.getWidth();
+		int bunch = Math.max(1, 6 / f);
+		int max = myJob.getStreamHeight();
+		Checkpoint ckpt = myJob.checkpoint;
+
+		// With a cost map, pieces are limited by cost and the buffer grows
+		// as needed.
+		int maxRows = bunch;
+		if (costs != null)
+			maxRows = Math.max(bunch, MAX_STREAM_ROWS / f);
+
+		int[] px = new int[bunch * f * w];
+
+		int start = 0;
+		int end   = 0;
+
+		while (true)
+		{
+			if (myJob.isCanceled())
+				return;
+
+			synchronized (coordinator)
+			{
+				// Skip rows which have been done in an earlier run.
+				while (ckpt != null && coordinator[0] < max
+						&& ckpt.isDone(coordinator[0]))
+				{
+					coordinator[0]++;
+					myJob.streamed.incrementAndGet();
+				}
+
+				if (coordinator[0] >= max)
+					return;
+
+				start = coordinator[0];
+				end = start + 1;
+				while (end < max && end - start < maxRows
+						&& (costs == null
+							? end - start < bunch
+							: costs.cost(start * f, end * f) < unit)
+						&& (ckpt == null || !ckpt.isDone(end)))
+					end++;
+				coordinator[0] = end;
+			}
+
+			if (px.length < (end - start) * f * w)
+				px = new int[(end - start) * f * w];
+
+			renderPass(start * f, end * f, px, 0);
+
+			try
+			{
+				int[] out = ImageOperations.resize2(px, w, (end - start) * f, f);
+				myJob.stream(out, start, end - start);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				myJob.setStreamError(e);
+				return;
+			}
+
+			// Update progress. Pieces don't finish in order, so count
+			// the rows instead of using "end".
+			int done = myJob.streamed.addAndGet(end - start);
+			if (myJob.pub != null)
+			{
+				myJob.pub.setValue((int)(100.0f * done / (float)max));
+				SwingUtilities.invokeLater(myJob.pub);
+			}
+		}
+	}
+
 	/**
 	 * Used to dispatch a job. It will calculate the fractal for the given
 	 * parameters in the background and will immediately return.
@@ -394,11 +594,23 @@ public class FractalRenderer extends Thread
 				// Manage
 				FractalRenderer[] run = new FractalRenderer[numthreads];
 				
+				// Estimate the cost of the rows, so that all pieces take
+				// about the same time.
+				CostMap costs = null;
+				double unit = 0.0;
+				if (job.plan)
+				{
+					costs = CostMap.preview(job.param, CostMap.PREVIEW_PIXELS);
+					unit = costs.total() / (numthreads * UNITS_PER_THREAD);
+				}
+
 				// Divide and Spawn
 				int[] coordinator = new int[1];
 				for (int i = 0; i < run.length; i++)
 				{
 					run[i] = new FractalRenderer(job, coordinator);
+					run[i].costs = costs;
+					run[i].unit = unit;
 					run[i].start();
 				}
 
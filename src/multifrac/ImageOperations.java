@@ -105,4 +105,82 @@ public class ImageOperations
 
 		return px;
 	}
+
+	/**
+	 * Reduce an RGB byte image (3 bytes per pixel) to half its size in
+	 * each dimension by averaging 2x2 blocks. Odd sizes are rounded up,
+	 * the last row/column is then repeated.
+	 */
+	public static byte[] halveRGB(byte[] rgb, int w, int h)
+	{
+		int wTo = (w + 1) / 2;
+		int hTo = (h + 1) / 2;
+		byte[] to = new byte[wTo * hTo * 3];
+
+		int tind = 0;
+		for (int y = 0; y < h; y += 2)
+		{
+			int row0 = y * w * 3;
+			int row1 = (y + 1 < h ? y + 1 : y) * w * 3;
+
+			for (int x = 0; x < w; x += 2)
+			{
+				int c0 = x * 3;
+				int c1 = (x + 1 < w ? x + 1 : x) * 3;
+
+				for (int i = 0; i < 3; i++)
+				{
+					int sum = (rgb[row0 + c0 + i] & 0xFF)
+						+ (rgb[row0 + c1 + i] & 0xFF)
+						+ (rgb[row1 + c0 + i] & 0xFF)
+						+ (rgb[row1 + c1 + i] & 0xFF);
+
+					to[tind++] = (byte)((sum + 2) >> 2);
+				}
+			}
+		}
+
+		return to;
+	}
+
+	/**
+	 * Same as halveRGB() but for ARGB ints. The result is opaque.
+	 */
+	public static int[] halveARGB(int[] px, int w, int h)
+	{
+		int wTo = (w + 1) / 2;
+		int hTo = (h + 1) / 2;
+		int[] to = new int[wTo * hTo];
+
+		int tind = 0;
+		for (int y = 0; y < h; y += 2)
+		{
+			int row0 = y * w;
+			int row1 = (y + 1 < h ? y + 1 : y) * w;
+
+			for (int x = 0; x < w; x += 2)
+			{
+				int x1 = (x + 1 < w ? x + 1 : x);
+
+				int c00 = px[row0 + x];
+				int c10 = px[row0 + x1];
+				int c01 = px[row1 + x];
+				int c11 = px[row1 + x1];
+
+				int c = 0xFF000000;
+				for (int sh = 0; sh < 24; sh += 8)
+				{
+					int sum = ((c00 >> sh) & 0xFF)
+						+ ((c10 >> sh) & 0xFF)
+						+ ((c01 >> sh) & 0xFF)
+						+ ((c11 >> sh) & 0xFF);
+
+					c |= ((sum + 2) >> 2) << sh;
+				}
+				to[tind++] = c;
+			}
+		}
+
+		return to;
+	}
 }
@@ -0,0 +1,479 @@
+/*
+	Copyright 2009 Peter Hofmann
+
+	This file is part of Multifrac.
+
+	Multifrac is free software: you can redistribute it and/or modify it
+	under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Multifrac is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Multifrac. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package multifrac;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * PNG-Writer which reads the scanlines directly from an int[]-buffer.
+ * There's no need to copy the image into a BufferedImage first.
+ *
+ * The image is split into groups of rows. Each group is filtered and
+ * deflated on its own thread (like pigz does it): All groups but the
+ * last one end with a sync flush, so their output can simply be
+ * concatenated to one zlib stream.
+ */
+public class PNGWriter
+{
+	protected static final byte[] SIGNATURE = new byte[] {
+		(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+	protected static final int GROUP_BYTES = 1 << 20;
+
+	/**
+	 * Write the image to the file.
+	 */
+	public static void writeRGBImage(File f, int[] img, int w, int h)
+		throws IOException
+	{
+		PNGWriter png = new PNGWriter(f, w, h);
+
+		// No need to copy anything, the buffer won't change.
+		for (int y = 0; y < h; y += png.groupRows)
+		{
+			int rows = Math.min(png.groupRows, h - y);
+			png.submit(img, y * w, rows,
+					(y > 0 ? img : null), (y - 1) * w, y + rows >= h);
+		}
+		png.nextRow = h;
+
+		png.close();
+	}
+
+
+	private DataOutputStream out = null;
+	private int w = 0;
+	private int h = 0;
+	private int groupRows = 0;
+
+	// Rows which have been passed to writeRows() but are not yet
+	// submitted.
+	private int[] group = null;
+	private int groupFill = 0;
+	private int[] lastRow = null;
+	private int nextRow = 0;
+
+	private ExecutorService pool = null;
+	private LinkedList<Future<Part>> queue = new LinkedList<Future<Part>>();
+	private int maxQueue = 0;
+	private long adler = 1;
+	private boolean first = true;
+
+	/**
+	 * Result of one group: The compressed data, the Adler32 checksum of
+	 * the uncompressed data and its length.
+	 */
+	private static class Part
+	{
+		public byte[] data;
+		public long adler;
+		public long length;
+	}
+
+	/**
+	 * Create a new PNG-Streamer. Rows have to be written in order using
+	 * writeRows().
+	 */
+	public PNGWriter(File f, int w, int h) throws IOException
+	{
+		this.w = w;
+		this.h = h;
+
+		groupRows = Math.max(1, GROUP_BYTES / (w * 3 + 1));
+
+		// Small images (like tiles) consist of only one group. There's
+		// no need for a pool then.
+		if (h > groupRows)
+		{
+			int threads = Multifrac.numthreads;
+			maxQueue = 2 * threads;
+			pool = Executors.newFixedThreadPool(threads, new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "PNGWriter compressor");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(f)));
+
+		out.write(SIGNATURE);
+
+		// IHDR: 8 bit RGB, no interlacing
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream ihdr = new DataOutputStream(buf);
+		ihdr.writeInt(w);
+		ihdr.writeInt(h);
+		ihdr.writeByte(8);
+		ihdr.writeByte(2);
+		ihdr.writeByte(0);
+		ihdr.writeByte(0);
+		ihdr.writeByte(0);
+		ihdr.flush();
+		writeChunk("IHDR", buf.toByteArray());
+	}
+
+	/**
+	 * Write "num" rows taken from "px" beginning at index "off". The
+	 * rows have to be written in order, the data is copied.
+	 */
+	public void writeRows(int[] px, int off, int num) throws IOException
+	{
+		for (int r = 0; r < num; r++, off += w)
+		{
+			if (nextRow >= h)
+				return;
+
+			if (group == null)
+			{
+				group = new int[Math.min(groupRows, h - nextRow) * w];
+				groupFill = 0;
+			}
+
+			System.arraycopy(px, off, group, groupFill * w, w);
+			groupFill++;
+			nextRow++;
+
+			if (groupFill * w == group.length)
+			{
+				int[] prev = lastRow;
+				lastRow = new int[w];
+				System.arraycopy(group, group.length - w, lastRow, 0, w);
+
+				submit(group, 0, groupFill, prev, 0, nextRow >= h);
+				group = null;
+			}
+		}
+	}
+
+	/**
+	 * Finish the file. Missing rows (if the render has been aborted) are
+	 * filled with black.
+	 */
+	public void close() throws IOException
+	{
+		try
+		{
+			int[] black = new int[w];
+			while (nextRow < h)
+				writeRows(black, 0, 1);
+
+			while (!queue.isEmpty())
+				writePart(queue.removeFirst());
+
+			// zlib trailer: Adler32 of all uncompressed data
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			DataOutputStream trailer = new DataOutputStream(buf);
+			trailer.writeInt((int)adler);
+			trailer.flush();
+			writeChunk("IDAT", buf.toByteArray());
+
+			writeChunk("IEND", new byte[0]);
+		}
+		finally
+		{
+			if (pool != null)
+				pool.shutdownNow();
+			out.close();
+		}
+	}
+
+	/**
+	 * Internal use: Hand a group of rows to the pool. "prev" is the row
+	 * above the group, it's null for the very first group.
+	 */
+	private void submit(final int[] px, final int off, final int rows,
+			final int[] prev, final int prevOff, final boolean last)
+		throws IOException
+	{
+		if (pool == null)
+		{
+			FutureTask<Part> task = new FutureTask<Part>(new Callable<Part>()
+			{
+				@Override
+				public Part call()
+				{
+					return encode(px, off, rows, prev, prevOff, last);
+				}
+			});
+			task.run();
+			writePart(task);
+			return;
+		}
+
+		queue.addLast(pool.submit(new Callable<Part>()
+		{
+			@Override
+			public Part call()
+			{
+				return encode(px, off, rows, prev, prevOff, last);
+			}
+		}));
+
+		// Write finished groups in order, keep memory bounded.
+		while (queue.size() > maxQueue || (!queue.isEmpty()
+					&& queue.getFirst().isDone()))
+			writePart(queue.removeFirst());
+	}
+
+	/**
+	 * Internal use: Write one compressed group.
+	 */
+	private void writePart(Future<Part> f) throws IOException
+	{
+		Part p;
+		try
+		{
+			p = f.get();
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException(
+					"PNGWriter: Interrupted while compressing.");
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException("PNGWriter: Compression failed.",
+					e.getCause());
+		}
+
+		byte[] data = p.data;
+
+		// zlib header: Deflate, 32K window, default compression.
+		if (first)
+		{
+			byte[] withHeader = new byte[data.length + 2];
+			withHeader[0] = 0x78;
+			withHeader[1] = (byte)0x9C;
+			System.arraycopy(data, 0, withHeader, 2, data.length);
+			data = withHeader;
+			first = false;
+		}
+
+		adler = adler32Combine(adler, p.adler, p.length);
+		writeChunk("IDAT", data);
+	}
+
+	/**
+	 * Internal use: Filter and compress a group of rows.
+	 */
+	private Part encode(int[] px, int off, int rows, int[] prev, int prevOff,
+			boolean last)
+	{
+		int stride = w * 3;
+		byte[] raw = new byte[rows * (stride + 1)];
+
+		byte[] above = new byte[stride];
+		byte[] cur   = new byte[stride];
+		byte[] best  = new byte[stride];
+		byte[] tmp   = new byte[stride];
+
+		if (prev != null)
+			toRGB(prev, prevOff, above, w);
+
+		int at = 0;
+		for (int r = 0; r < rows; r++)
+		{
+			toRGB(px, off + r * w, cur, w);
+
+			// Try all filters and use the one with the smallest sum of
+			// absolute values (the usual heuristic).
+			long bestSum = Long.MAX_VALUE;
+			int bestType = 0;
+			for (int type = 0; type < 5; type++)
+			{
+				long sum = filter(type, cur, above, tmp);
+				if (sum < bestSum)
+				{
+					bestSum  = sum;
+					bestType = type;
+					byte[] swap = best;
+					best = tmp;
+					tmp  = swap;
+				}
+			}
+
+			raw[at++] = (byte)bestType;
+			System.arraycopy(best, 0, raw, at, stride);
+			at += stride;
+
+			byte[] swap = above;
+			above = cur;
+			cur   = swap;
+		}
+
+		Part p = new Part();
+
+		Adler32 a = new Adler32();
+		a.update(raw, 0, raw.length);
+		p.adler  = a.getValue();
+		p.length = raw.length;
+
+		// Raw deflate without zlib header. The header and the checksum
+		// are written once for the whole image.
+		Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		def.setInput(raw);
+
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(raw.length / 4 + 64);
+		byte[] chunk = new byte[65536];
+		if (last)
+		{
+			def.finish();
+			while (!def.finished())
+				buf.write(chunk, 0, def.deflate(chunk));
+		}
+		else
+		{
+			// A sync flush ends on a byte boundary, so the next group
+			// can be appended directly.
+			int n;
+			do
+			{
+				n = def.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+				buf.write(chunk, 0, n);
+			} while (n == chunk.length);
+		}
+		def.end();
+
+		p.data = buf.toByteArray();
+		return p;
+	}
+
+	/**
+	 * Internal use: Apply one of the PNG filters to a row. Returns the
+	 * sum of the absolute (signed) values.
+	 */
+	private static long filter(int type, byte[] cur, byte[] above, byte[] dst)
+	{
+		long sum = 0;
+		for (int i = 0; i < cur.length; i++)
+		{
+			int x = cur[i] & 0xFF;
+			int a = (i >= 3 ? cur[i - 3] & 0xFF : 0);
+			int b = above[i] & 0xFF;
+			int c = (i >= 3 ? above[i - 3] & 0xFF : 0);
+
+			int v;
+			switch (type)
+			{
+				case 1:
+					v = x - a;
+					break;
+				case 2:
+					v = x - b;
+					break;
+				case 3:
+					v = x - ((a + b) >> 1);
+					break;
+				case 4:
+					v = x - paeth(a, b, c);
+					break;
+				default:
+					v = x;
+			}
+
+			dst[i] = (byte)v;
+			sum += Math.abs((int)dst[i]);
+		}
+		return sum;
+	}
+
+	private static int paeth(int a, int b, int c)
+	{
+		int p  = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+
+		if (pa <= pb && pa <= pc)
+			return a;
+		else if (pb <= pc)
+			return b;
+		else
+			return c;
+	}
+
+	/**
+	 * Internal use: Convert ARGB ints to RGB bytes.
+	 */
+	private static void toRGB(int[] px, int off, byte[] rgb, int num)
+	{
+		int at = 0;
+		for (int i = off; i < off + num; i++)
+		{
+			rgb[at++] = (byte)(px[i] >> 16);
+			rgb[at++] = (byte)(px[i] >>  8);
+			rgb[at++] = (byte)(px[i]      );
+		}
+	}
+
+	/**
+	 * Internal use: Combine two Adler32 checksums (see zlib's
+	 * adler32_combine()).
+	 */
+	private static long adler32Combine(long adler1, long adler2, long len2)
+	{
+		final long BASE = 65521;
+
+		long rem  = len2 % BASE;
+		long sum1 = adler1 & 0xFFFF;
+		long sum2 = (rem * sum1) % BASE;
+
+		sum1 += (adler2 & 0xFFFF) + BASE - 1;
+		sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF)
+			+ BASE - rem;
+
+		if (sum1 >= BASE)
+			sum1 -= BASE;
+		if (sum1 >= BASE)
+			sum1 -= BASE;
+		if (sum2 >= (BASE << 1))
+			sum2 -= (BASE << 1);
+		if (sum2 >= BASE)
+			sum2 -= BASE;
+
+		return sum1 | (sum2 << 16);
+	}
+
+	/**
+	 * Internal use: Write one PNG chunk including its CRC.
+	 */
+	private void writeChunk(String type, byte[] data) throws IOException
+	{
+		byte[] t = type.getBytes("US-ASCII");
+
+		CRC32 crc = new CRC32();
+		crc.update(t);
+		crc.update(data);
+
+		out.writeInt(data.length);
+		out.write(t);
+		out.write(data);
+		out.writeInt((int)crc.getValue());
+	}
+}
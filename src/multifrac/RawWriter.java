@@ -0,0 +1,244 @@
+/*
+	Copyright 2009 Peter Hofmann
+
+	This file is part of Multifrac.
+
+	Multifrac is free software: you can redistribute it and/or modify it
+	under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Multifrac is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Multifrac. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package multifrac;
+
+import java.io.*;
+
+/**
+ * Writes smooth iteration values instead of colors, so an image can be
+ * recolored later on without rendering it again (see Recolor).
+ *
+ * File layout, all numbers are big endian:
+ *
+ *    0  int    MAGIC ("MFRW")
+ *    4  int    VERSION
+ *    8  int    width of the stored data
+ *   12  int    height of the stored data
+ *   16  int    supersampling factor (final image is width/ss x height/ss)
+ *   20  int    FORMAT_FLOAT or FORMAT_FIXED16
+ *   24  long   offset of the first row (page aligned)
+ *   32  int    length of the parameter block
+ *   36  ...    FractalParameters.writeToStream()
+ *
+ * Rows are stored top to bottom without any padding. Values are the
+ * smooth iteration count divided by nmax, without gradientPow applied.
+ * FORMAT_FLOAT uses 32 bit floats where "inside" is -1. FORMAT_FIXED16
+ * uses unsigned 16 bit integers where 0...FIXED_MAX maps to 0.0...1.0
+ * and FIXED_INSIDE is "inside".
+ */
+public class RawWriter implements StreamTarget
+{
+	public static final int MAGIC   = 0x4D465257;
+	public static final int VERSION = 1;
+
+	public static final int FORMAT_FLOAT   = 0;
+	public static final int FORMAT_FIXED16 = 1;
+
+	public static final int FIXED_MAX    = 0xFFFE;
+	public static final int FIXED_INSIDE = 0xFFFF;
+
+	protected static final int ALIGN = 4096;
+
+	/**
+	 * Header of a raw file.
+	 */
+	public static class Header
+	{
+		public int width;
+		public int height;
+		public int supersampling;
+		public int format;
+		public long dataOffset;
+		public FractalParameters param;
+
+		public int bytesPerValue()
+		{
+			return (format == FORMAT_FIXED16 ? 2 : 4);
+		}
+
+		public static Header read(File f) throws IOException
+		{
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(f)));
+			try
+			{
+				if (in.readInt() != MAGIC || in.readInt() != VERSION)
+					throw new IOException("RawWriter: Not a raw file or wrong version.");
+
+				Header h = new Header();
+				h.width         = in.readInt();
+				h.height        = in.readInt();
+				h.supersampling = in.readInt();
+				h.format        = in.readInt();
+				h.dataOffset    = in.readLong();
+
+				byte[] block = new byte[in.readInt()];
+				in.readFully(block);
+				try
+				{
+					h.param = new FractalParameters(new DataInputStream(
+								new ByteArrayInputStream(block)));
+				}
+				catch (Exception e)
+				{
+					throw new IOException("RawWriter: Invalid parameter block.", e);
+				}
+				h.param.size.width  = h.width  / h.supersampling;
+				h.param.size.height = h.height / h.supersampling;
+
+				return h;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Convert one value (as stored in a raw Job) to its fixed point
+	 * representation.
+	 */
+	public static int toFixed(float v)
+	{
+		if (v < 0.0f)
+			return FIXED_INSIDE;
+		if (v >= 1.0f)
+			return FIXED_MAX;
+		return (int)(v * FIXED_MAX + 0.5f);
+	}
+
+	/**
+	 * Convert a fixed point value back.
+	 */
+	public static float fromFixed(int v)
+	{
+		if (v == FIXED_INSIDE)
+			return FractalRenderer.RAW_INSIDE;
+		return (float)v / FIXED_MAX;
+	}
+
+
+	private RandomAccessFile file = null;
+	private int w = 0;
+	private int h = 0;
+	private int format = FORMAT_FLOAT;
+	private long dataOffset = 0;
+
+	/**
+	 * Create a new raw file. "w" and "h" are the dimensions of the stored
+	 * data, that is, including supersampling.
+	 */
+	public RawWriter(File f, FractalParameters param, int w, int h, int ss,
+			int format) throws IOException
+	{
+		this(f, param, w, h, ss, format, false);
+	}
+
+	/**
+	 * Create a new raw file. If "resume" is set, an existing file is
+	 * opened without truncating it, so rows written by an earlier run
+	 * are kept.
+	 */
+	public RawWriter(File f, FractalParameters param, int w, int h, int ss,
+			int format, boolean resume) throws IOException
+	{
+		this.w = w;
+		this.h = h;
+		this.format = format;
+
+		ByteArrayOutputStream pbuf = new ByteArrayOutputStream();
+		DataOutputStream pout = new DataOutputStream(pbuf);
+		param.writeToStream(pout);
+		pout.flush();
+		byte[] block = pbuf.toByteArray();
+
+		dataOffset = 36 + block.length;
+		dataOffset = ((dataOffset + ALIGN - 1) / ALIGN) * ALIGN;
+
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(w);
+		out.writeInt(h);
+		out.writeInt(ss);
+		out.writeInt(format);
+		out.writeLong(dataOffset);
+		out.writeInt(block.length);
+		out.write(block);
+		out.flush();
+
+		file = new RandomAccessFile(f, "rw");
+		if (!resume)
+			file.setLength(0);
+		file.write(buf.toByteArray());
+		file.setLength(dataOffset + (long)w * h * bytesPerValue());
+	}
+
+	private int bytesPerValue()
+	{
+		return (format == FORMAT_FIXED16 ? 2 : 4);
+	}
+
+	/**
+	 * Write "num" rows of raw values (as stored in a raw Job) beginning at
+	 * index "off" of "px". They will be placed at row "row" of the file.
+	 * Rows can be written in any order.
+	 */
+	public synchronized void writeRows(int[] px, int off, int row, int num)
+		throws IOException
+	{
+		int bpv = bytesPerValue();
+		byte[] line = new byte[w * bpv];
+
+		file.seek(dataOffset + (long)row * w * bpv);
+		for (int y = 0; y < num; y++)
+		{
+			int at = 0;
+			for (int x = 0; x < w; x++)
+			{
+				int v = px[off++];
+				if (format == FORMAT_FIXED16)
+					v = toFixed(Float.intBitsToFloat(v));
+				else
+				{
+					line[at++] = (byte)(v >> 24);
+					line[at++] = (byte)(v >> 16);
+				}
+				line[at++] = (byte)(v >> 8);
+				line[at++] = (byte)(v     );
+			}
+			file.write(line);
+		}
+	}
+
+	/**
+	 * Nothing to do, rows are written without buffering.
+	 */
+	public void flush() throws IOException
+	{
+	}
+
+	public synchronized void close() throws IOException
+	{
+		file.close();
+	}
+}
@@ -0,0 +1,252 @@
+/*
+	Copyright 2009 Peter Hofmann
+
+	This file is part of Multifrac.
+
+	Multifrac is free software: you can redistribute it and/or modify it
+	under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Multifrac is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Multifrac. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package multifrac;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Turns a raw file (see RawWriter) into a TIFF or PNG image using any
+ * gradient. The raw file is memory mapped band by band, each band is
+ * colored in parallel and then streamed to the image writer.
+ */
+public class Recolor
+{
+	protected static final int BAND_ROWS = 64;
+
+	private static void msg(String s)
+	{
+		System.out.println("[Recolor] " + s);
+	}
+
+	/**
+	 * Color "in" using the gradient, gradientPow and inside color of
+	 * "colors" and save it to "out". If "colors" is null, the parameters
+	 * stored in the raw file are used. "layout" is only used for TIFF
+	 * files.
+	 */
+	public static void recolor(File in, File out, FractalParameters colors,
+			TIFFWriter.Layout layout, FractalRenderer.Publisher pub)
+		throws IOException
+	{
+		final RawWriter.Header head = RawWriter.Header.read(in);
+
+		final FractalParameters param = new FractalParameters(head.param);
+		if (colors != null)
+		{
+			param.gradient    = colors.gradient;
+			param.gradientPow = colors.gradientPow;
+			param.colorInside = colors.colorInside;
+		}
+
+		final int w  = head.width;
+		final int ss = head.supersampling;
+		final int ow = head.width  / ss;
+		final int oh = head.height / ss;
+		final int bpv = head.bytesPerValue();
+
+		String a = out.getName();
+		String ext = a.substring(a.lastIndexOf('.') + 1).toUpperCase();
+
+		TIFFWriter tiff = null;
+		PNGWriter png = null;
+		if (ext.equals("TIF") || ext.equals("TIFF"))
+			tiff = new TIFFWriter(out, ow, oh, layout);
+		else if (ext.equals("PNG"))
+			png = new PNGWriter(out, ow, oh);
+		else
+			throw new IOException("Recolor: Only TIFF and PNG files are supported.");
+
+		int threads = Multifrac.numthreads;
+		ExecutorService pool = Executors.newFixedThreadPool(threads,
+				new ThreadFactory()
+				{
+					@Override
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "Recolor worker");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+
+		FileChannel ch = new RandomAccessFile(in, "r").getChannel();
+		try
+		{
+			final int[] band = new int[BAND_ROWS * ow];
+
+			for (int row = 0; row < oh; row += BAND_ROWS)
+			{
+				final int rows = Math.min(BAND_ROWS, oh - row);
+
+				// Map the input rows for this band.
+				final MappedByteBuffer map = ch.map(
+						FileChannel.MapMode.READ_ONLY,
+						head.dataOffset + (long)row * ss * w * bpv,
+						(long)rows * ss * w * bpv);
+
+				// Split the band into slices of output rows.
+				ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+				int per = Math.max(1, (rows + threads - 1) / threads);
+				for (int s = 0; s < rows; s += per)
+				{
+					final int sFrom = s;
+					final int sTo   = Math.min(rows, s + per);
+					tasks.add(new Callable<Object>()
+					{
+						@Override
+						public Object call()
+						{
+							colorSlice(map, head, param, band, sFrom, sTo);
+							return null;
+						}
+					});
+				}
+
+				try
+				{
+					for (Future<Object> f : pool.invokeAll(tasks))
+						f.get();
+				}
+				catch (InterruptedException e)
+				{
+					throw new InterruptedIOException("Recolor: Interrupted.");
+				}
+				catch (ExecutionException e)
+				{
+					throw new IOException("Recolor: Coloring failed.", e.getCause());
+				}
+
+				if (tiff != null)
+					tiff.writeRows(band, 0, row, rows);
+				else
+					png.writeRows(band, 0, rows);
+
+				if (pub != null)
+					pub.setValue((int)(100.0f * (row + rows) / (float)oh));
+			}
+		}
+		finally
+		{
+			pool.shutdownNow();
+			ch.close();
+
+			if (tiff != null)
+				tiff.close();
+			if (png != null)
+				png.close();
+		}
+	}
+
+	/**
+	 * Internal use: Color the output rows "from" to "to" (relative to the
+	 * mapped band) and downscale them.
+	 */
+	private static void colorSlice(ByteBuffer map, RawWriter.Header head,
+			FractalParameters param, int[] band, int from, int to)
+	{
+		int w  = head.width;
+		int ss = head.supersampling;
+		int ow = w / ss;
+		int rows = (to - from) * ss;
+
+		int[] px = new int[rows * w];
+		int at = from * ss * w;
+
+		for (int i = 0; i < px.length; i++, at++)
+		{
+			float v;
+			if (head.format == RawWriter.FORMAT_FIXED16)
+				v = RawWriter.fromFixed(map.getShort(at * 2) & 0xFFFF);
+			else
+				v = map.getFloat(at * 4);
+
+			px[i] = FractalRenderer.colorize(param, v);
+		}
+
+		px = ImageOperations.resize2(px, w, rows, ss);
+		System.arraycopy(px, 0, band, from * ow, (to - from) * ow);
+	}
+
+	private static void usage()
+	{
+		System.err.println("Usage: Recolor [-c none|deflate|packbits] [-t]"
+				+ " input.mfr output.tif|output.png [colors.muf]");
+		System.err.println("  -c  Compression of TIFF files");
+		System.err.println("  -t  Write tiled TIFF files");
+		System.exit(1);
+	}
+
+	public static void main(String[] args)
+	{
+		int compression = 0;
+		int layout = 0;
+		ArrayList<String> files = new ArrayList<String>();
+
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("-c") && i + 1 < args.length)
+			{
+				String c = args[++i];
+				if (c.equals("none"))
+					compression = 0;
+				else if (c.equals("deflate"))
+					compression = 1;
+				else if (c.equals("packbits"))
+					compression = 2;
+				else
+					usage();
+			}
+			else if (args[i].equals("-t"))
+				layout = 1;
+			else if (args[i].equals("-h"))
+				usage();
+			else
+				files.add(args[i]);
+		}
+
+		if (files.size() < 2 || files.size() > 3)
+			usage();
+
+		try
+		{
+			FractalParameters colors = null;
+			if (files.size() == 3)
+			{
+				FileInputStream fis = new FileInputStream(files.get(2));
+				colors = new FractalParameters(new DataInputStream(fis));
+				fis.close();
+			}
+
+			long start = System.currentTimeMillis();
+			recolor(new File(files.get(0)), new File(files.get(1)), colors,
+					TIFFWriter.Layout.of(layout, compression, false), null);
+			msg("Done after " + (System.currentTimeMillis() - start) + " ms.");
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -32,6 +32,20 @@ public class RenderDialog extends JDialog
 	private static Dimension lastSize = null;
 	private static String    lastFile = null;
 	private static int       lastSuper = 2;
+	private static int       lastLayout = 0;
+	private static int       lastCompression = 0;
+	private static boolean   lastPyramid = false;
+	private static int       lastRawFormat = 0;
+	private static boolean   lastPlan = true;
+
+	public static final String[] LAYOUTS =
+		new String[] { "Strips", "Tiles (256x256)" };
+	public static final String[] COMPRESSIONS =
+		new String[] { "None", "Deflate", "PackBits" };
+	public static final String[] RAW_FORMATS =
+		new String[] { "Float (32 bit)", "Fixed point (16 bit)" };
+
+	public static final String RAW_EXTENSION = "mfr";
 
 	private JTextField c_width  = new JTextField();
 	private JTextField c_height = new JTextField();
@@ -40,6 +54,11 @@ public class RenderDialog extends JDialog
 	private JButton    c_ok     = new JButton("OK");
 	private JButton    c_cancel = new JButton("Cancel");
 	private JComboBox  c_super  = null;
+	private JComboBox<String> c_layout = null;
+	private JComboBox<String> c_compression = null;
+	private JCheckBox  c_pyramid = new JCheckBox("Store reduced resolutions");
+	private JComboBox<String> c_raw    = null;
+	private JCheckBox  c_plan   = new JCheckBox("Balance threads by a cost preview");
 
 	private FractalParameters param = null;
 
@@ -102,16 +121,63 @@ public class RenderDialog extends JDialog
 		lastSize = new Dimension(param.size);
 		lastFile = c_file.getText();
 		lastSuper = c_super.getSelectedIndex();
+		lastLayout = c_layout.getSelectedIndex();
+		lastCompression = c_compression.getSelectedIndex();
+		lastPyramid = c_pyramid.isSelected();
+		lastRawFormat = c_raw.getSelectedIndex();
+		lastPlan = c_plan.isSelected();
 
 		RenderSettings rset = new RenderSettings();
 		rset.param = param;
 		rset.tfile = tfile;
+		rset.plan = lastPlan;
+		rset.layout = TIFFWriter.Layout.of(
+				lastLayout, lastCompression, lastPyramid);
+		rset.raw = tfile.getName().toLowerCase().endsWith("." + RAW_EXTENSION);
+		rset.rawFormat = (lastRawFormat == 1
+				? RawWriter.FORMAT_FIXED16
+				: RawWriter.FORMAT_FLOAT);
 
 		// Index 0 = Factor 1
 		// Index 1 = Factor 2
 		// Index 2 = Factor 4 ... --> 2^Index
 		rset.supersampling = (int)Math.pow(2.0, lastSuper);
 
+		// Raw files and TIFF files are streamed to disk as soon as rows
+		// are done. Raw files and classic TIFF files have a fixed layout,
+		// which also allows resuming an interrupted render.
+		String a = tfile.getName();
+		String ext = a.substring(a.lastIndexOf('.') + 1).toUpperCase();
+		if (rset.raw)
+		{
+			rset.stream = true;
+			rset.resumable = true;
+			rset.streamRows = param.getHeight() * rset.supersampling;
+			rset.key = Checkpoint.makeKey(param, param.getWidth(),
+					param.getHeight(), rset.supersampling,
+					"RAW" + rset.rawFormat);
+		}
+		else if (ext.equals("TIF") || ext.equals("TIFF"))
+		{
+			// Tiled, compressed and pyramid files are written chunk by
+			// chunk, they can't be resumed.
+			rset.stream = true;
+			if (TIFFWriter.isResumable(rset.layout))
+			{
+				rset.resumable = true;
+				rset.streamRows = param.getHeight();
+				rset.key = Checkpoint.makeKey(param, param.getWidth(),
+						param.getHeight(), rset.supersampling, "TIFF");
+			}
+		}
+		else if (TilePyramidWriter.formatOf(tfile) != -1)
+		{
+			// Tile pyramids are streamed, too, but they can't be
+			// resumed: Incomplete bands only live in memory.
+			rset.stream = true;
+			rset.tiles = TilePyramidWriter.formatOf(tfile);
+		}
+
 		// Check if the image fits into memory
 		double w = (double)param.getWidth();
 		double h = (double)param.getHeight();
@@ -123,16 +189,39 @@ public class RenderDialog extends JDialog
 		if (rset.supersampling >= 2)
 			sz = w * h * rset.supersampling * rset.supersampling * 1.5 * 4;
 
-		if (av < sz)
+		if (av < sz && !rset.stream)
 		{
 			JOptionPane.showMessageDialog(this,
 				"I'm sorry, " + toSize(sz) + " memory needed to process this image but only " + toSize(av) + " available.\nTry increasing your heap space with \"-Xmx...\".", "Error", JOptionPane.ERROR_MESSAGE);
 			return;
 		}
 
+		// Is there an unfinished render of the same image?
+		if (rset.resumable)
+		{
+			Checkpoint ckpt = Checkpoint.load(tfile, rset.key, rset.streamRows);
+			if (ckpt != null)
+			{
+				int ret = JOptionPane.showConfirmDialog(this,
+					tfile.getAbsolutePath() + "\n" +
+					"An unfinished render of this image exists ("
+					+ ckpt.countDone() + " of " + ckpt.getRows()
+					+ " rows done).\nResume it? Otherwise, it'll be overwritten.",
+					"Resume", JOptionPane.YES_NO_CANCEL_OPTION);
+				if (ret == JOptionPane.YES_OPTION)
+					rset.resume = ckpt;
+				else
+					ckpt.close();
+
+				if (ret != JOptionPane.YES_OPTION
+						&& ret != JOptionPane.NO_OPTION)
+					return;
+			}
+		}
+
 		// Ok, we're ready to go. Overwrite existing file?
 		// This should be the last question.
-		if (tfile.exists())
+		if (tfile.exists() && rset.resume == null)
 		{
 			int ret = JOptionPane.showConfirmDialog(this,
 				tfile.getAbsolutePath() + "\n" +
@@ -177,6 +266,17 @@ public class RenderDialog extends JDialog
 		c_super = new JComboBox(new String[] { "None", "2x2", "4x4", "8x8" });
 		c_super.setSelectedIndex(lastSuper);
 
+		c_layout = new JComboBox<String>(LAYOUTS);
+		c_layout.setSelectedIndex(lastLayout);
+
+		c_compression = new JComboBox<String>(COMPRESSIONS);
+		c_compression.setSelectedIndex(lastCompression);
+		c_pyramid.setSelected(lastPyramid);
+
+		c_raw = new JComboBox<String>(RAW_FORMATS);
+		c_raw.setSelectedIndex(lastRawFormat);
+		c_plan.setSelected(lastPlan);
+
 		sgb.add(new JLabel("Width:"),			0, 0, 1, 1, 1.0, 1.0);
 		sgb.add(c_width,						1, 0, GridBagConstraints.REMAINDER, 1, 1.0, 1.0);
 		sgb.add(new JLabel("Height:"),			0, 1, 1, 1, 1.0, 1.0);
@@ -186,12 +286,22 @@ public class RenderDialog extends JDialog
 		sgb.add(new JLabel("File:"),			0, 3, 1, 1, 1.0, 1.0);
 		sgb.add(c_file,							1, 3, 1, 1, 1.0, 1.0);
 		sgb.add(c_file_chooser,					2, 3, 1, 1, 1.0, 1.0);
+		sgb.add(new JLabel("TIFF layout:"),		0, 4, 1, 1, 1.0, 1.0);
+		sgb.add(c_layout,						1, 4, GridBagConstraints.REMAINDER, 1, 1.0, 1.0);
+		sgb.add(new JLabel("TIFF compression:"),	0, 5, 1, 1, 1.0, 1.0);
+		sgb.add(c_compression,					1, 5, GridBagConstraints.REMAINDER, 1, 1.0, 1.0);
+		sgb.add(new JLabel("TIFF pyramid:"),	0, 6, 1, 1, 1.0, 1.0);
+		sgb.add(c_pyramid,						1, 6, GridBagConstraints.REMAINDER, 1, 1.0, 1.0);
+		sgb.add(new JLabel("Raw values (*." + RAW_EXTENSION + "):"),	0, 7, 1, 1, 1.0, 1.0);
+		sgb.add(c_raw,							1, 7, GridBagConstraints.REMAINDER, 1, 1.0, 1.0);
+		sgb.add(new JLabel("Scheduling:"),		0, 8, 1, 1, 1.0, 1.0);
+		sgb.add(c_plan,							1, 8, GridBagConstraints.REMAINDER, 1, 1.0, 1.0);
 
 		JPanel buttonPanel = new JPanel();
 		buttonPanel.setLayout(new FlowLayout(FlowLayout.RIGHT, 2, 2));
 		buttonPanel.add(c_ok);
 		buttonPanel.add(c_cancel);
-		sgb.add(buttonPanel, 0, 4, GridBagConstraints.REMAINDER, 1, 1.0, 1.0);
+		sgb.add(buttonPanel, 0, 9, GridBagConstraints.REMAINDER, 1, 1.0, 1.0);
 		
 		// One action listener that will fire up the rendering process
 		final RenderDialog subparent = this;
@@ -242,6 +352,16 @@ public class RenderDialog extends JDialog
 		public FractalParameters param;
 		public File tfile;
 		public int supersampling;
+		public TIFFWriter.Layout layout;
+		public boolean raw;
+		public int rawFormat;
+		public boolean stream;
+		public boolean resumable;
+		public int tiles = -1;
+		public int streamRows;
+		public long key;
+		public Checkpoint resume;
+		public boolean plan;
 	}
 
 	public static class BarDriver extends FractalRenderer.Publisher
@@ -322,15 +442,102 @@ public class RenderDialog extends JDialog
 			add(cancel);
 
 			// Construct Job
-			myJob = FractalRenderer.dispatchJob(Multifrac.numthreads,
-					new FractalRenderer.Job(rset.param, rset.supersampling, -1, new BarDriver(this)),
+			FractalRenderer.Job job = null;
+			if (rset.stream)
+			{
+				// No buffer for the whole image, rows go to the target.
+				job = new FractalRenderer.Job(rset.param,
+						rset.supersampling, -1, new BarDriver(this), 0);
+				job.raw = rset.raw;
+				job.plan = rset.plan;
+
+				try
+				{
+					boolean resume = (rset.resume != null);
+					if (rset.tiles != -1)
+						job.target = new TilePyramidWriter(rset.tfile,
+								rset.param.getWidth(), rset.param.getHeight(),
+								rset.tiles);
+					else if (rset.raw)
+						job.target = new RawWriter(rset.tfile, job.param,
+								job.getWidth(), job.getHeight(),
+								rset.supersampling, rset.rawFormat, resume);
+					else
+						job.target = new TIFFWriter(rset.tfile,
+								rset.param.getWidth(), rset.param.getHeight(),
+								rset.layout, resume);
+
+					if (resume)
+						job.checkpoint = rset.resume;
+					else if (rset.resumable)
+						job.checkpoint = Checkpoint.create(rset.tfile,
+								rset.key, rset.streamRows);
+				}
+				catch (IOException e)
+				{
+					JOptionPane.showMessageDialog(parent,
+						"Could not open the file:\n" + e
+						+ "\n\nSee console for details.", "Error", JOptionPane.ERROR_MESSAGE);
+					e.printStackTrace();
+
+					if (rset.resume != null)
+						rset.resume.close();
+					dispose();
+					return;
+				}
+			}
+			else
+			{
+				job = new FractalRenderer.Job(rset.param,
+						rset.supersampling, -1, new BarDriver(this));
+				job.raw = rset.raw;
+				job.plan = rset.plan;
+			}
+
+			myJob = FractalRenderer.dispatchJob(Multifrac.numthreads, job,
 					new FractalRenderer.Callback()
 					{
 						@Override
 						public void run()
 						{
 							FractalRenderer.Job result = getJob();
-							
+
+							// Streamed: Everything has been written. If the
+							// job has been canceled, keep the checkpoint so
+							// it can be resumed.
+							if (result.target != null)
+							{
+								IOException err = result.getStreamError();
+								try
+								{
+									result.target.close();
+								}
+								catch (IOException e)
+								{
+									e.printStackTrace();
+									if (err == null)
+										err = e;
+								}
+
+								if (result.checkpoint != null)
+								{
+									if (result.isCanceled())
+										result.checkpoint.close();
+									else
+										result.checkpoint.delete();
+								}
+
+								if (err != null)
+								{
+									JOptionPane.showMessageDialog(me,
+										"Error while writing the file:\n" + err
+										+ "\n\nSee console for details.", "Error", JOptionPane.ERROR_MESSAGE);
+								}
+
+								me.dispose();
+								return;
+							}
+
 							// Important: Check whether the job has been canceled
 							if (result.isCanceled())
 							{
@@ -349,10 +556,10 @@ public class RenderDialog extends JDialog
 							// Save/Encode the file
 							try
 							{
-								if (ext.equals("TIF") || ext.equals("TIFF"))
+								if (ext.equals("PNG"))
 								{
-									// Use own tiff writer
-									TIFFWriter.writeRGBImage(rset.tfile, px, w, h);
+									// Use own png writer, saves a copy
+									PNGWriter.writeRGBImage(rset.tfile, px, w, h);
 								}
 								else
 								{
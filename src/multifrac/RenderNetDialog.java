@@ -39,6 +39,20 @@ public class RenderNetDialog extends JDialog
 	protected static String lastFile   = "";
 	protected static int    lastSuper  = 2;
 	protected static boolean lastStream = false;
+	protected static int    lastLayout = 0;
+	protected static int    lastCompression = 0;
+	protected static boolean lastPyramid = false;
+	protected static boolean lastCompress = true;
+	protected static int    lastValues = 0;
+	protected static int    lastWindow = 1;
+	protected static boolean lastPlan = true;
+	protected static boolean lastLocal = true;
+	protected static String lastShared = "";
+
+	public static final String[] VALUES = new String[]
+		{ "Colors", "Values (32 bit float)", "Values (16 bit fixed point)" };
+	public static final String[] WINDOWS = new String[]
+		{ "1 (wait for each job)", "2", "3", "4" };
 
 	// Fractal settings
 	protected FractalParameters param = null;
@@ -47,8 +61,17 @@ public class RenderNetDialog extends JDialog
 	protected JTextField c_width  = new JTextField();
 	protected JTextField c_height = new JTextField();
 	protected JTextField c_file   = new JTextField(20);
+	protected JTextField c_shared = new JTextField(20);
 	protected JComboBox  c_super  = null;
 	protected JCheckBox  c_stream = null;
+	protected JComboBox<String> c_layout = null;
+	protected JComboBox<String> c_compression = null;
+	protected JCheckBox  c_pyramid = null;
+	protected JCheckBox  c_compress = null;
+	protected JComboBox<String> c_values = null;
+	protected JComboBox<String> c_window = null;
+	protected JCheckBox  c_plan = null;
+	protected JCheckBox  c_local = null;
 
 	protected final JList remoteList     = new JList(remoteListModel);
 	protected final JTextField newRemote = new JTextField(30);
@@ -106,7 +129,7 @@ public class RenderNetDialog extends JDialog
 
 		// Focus listeners for all text fields
 		JTextField[] av = new JTextField[]
-			{ newRemote, c_width, c_height, c_file };
+			{ newRemote, c_width, c_height, c_file, c_shared };
 		CompHelp.addSelectOnFocus(av);
 
 		// Reload old values
@@ -135,6 +158,15 @@ public class RenderNetDialog extends JDialog
 		c_super.setSelectedIndex(lastSuper);
 
 		c_stream.setSelected(lastStream);
+		c_layout.setSelectedIndex(lastLayout);
+		c_compression.setSelectedIndex(lastCompression);
+		c_pyramid.setSelected(lastPyramid);
+		c_compress.setSelected(lastCompress);
+		c_values.setSelectedIndex(lastValues);
+		c_window.setSelectedIndex(lastWindow);
+		c_plan.setSelected(lastPlan);
+		c_local.setSelected(lastLocal);
+		c_shared.setText(lastShared);
 	}
 
 	protected void saveValues()
@@ -143,6 +175,15 @@ public class RenderNetDialog extends JDialog
 		lastHeight = c_height.getText();
 		lastFile   = c_file.getText();
 		lastSuper  = c_super.getSelectedIndex();
+		lastLayout = c_layout.getSelectedIndex();
+		lastCompression = c_compression.getSelectedIndex();
+		lastPyramid = c_pyramid.isSelected();
+		lastCompress = c_compress.isSelected();
+		lastValues = c_values.getSelectedIndex();
+		lastWindow = c_window.getSelectedIndex();
+		lastPlan = c_plan.isSelected();
+		lastLocal = c_local.isSelected();
+		lastShared = c_shared.getText();
 	}
 
 	/**
@@ -174,7 +215,7 @@ public class RenderNetDialog extends JDialog
 	{
 		saveValues();
 
-		if (remoteListModel.isEmpty())
+		if (remoteListModel.isEmpty() && !lastLocal)
 		{
 			JOptionPane.showMessageDialog(this,
 				"No remote hosts entered.",
@@ -266,9 +307,45 @@ public class RenderNetDialog extends JDialog
 			return;
 		}
 
+		// What the nodes send. Values are colored here.
+		if (lastValues == 1)
+			nset.values = RawWriter.FORMAT_FLOAT;
+		else if (lastValues == 2)
+			nset.values = RawWriter.FORMAT_FIXED16;
+
 		// Stream to disk?
 		nset.directStream = lastStream;
 
+		// Raw files are always streamed and require values.
+		if (nset.tfile.getName().toLowerCase().endsWith(
+					"." + RenderDialog.RAW_EXTENSION))
+		{
+			nset.raw = true;
+			nset.directStream = true;
+			if (nset.values == Node.VALUES_COLORS)
+				nset.values = RawWriter.FORMAT_FLOAT;
+		}
+
+		// Layout of TIFF files
+		nset.tiffLayout = TIFFWriter.Layout.of(
+				lastLayout, lastCompression, lastPyramid);
+
+		// Compress pixel data if the nodes support it
+		nset.compress = lastCompress;
+
+		// Jobs sent to each node in advance
+		nset.window = lastWindow + 1;
+
+		// Size jobs by the cost of a preview render
+		nset.plan = lastPlan;
+
+		// Use the CPUs of this machine, too
+		nset.local = lastLocal;
+
+		// Nodes see this directory as their output directory
+		if (!lastShared.trim().equals(""))
+			nset.sharedRoot = new File(lastShared.trim()).getAbsoluteFile();
+
 		// Index 0 = Factor 1
 		// Index 1 = Factor 2
 		// Index 2 = Factor 4 ... --> 2^Index
@@ -278,14 +355,12 @@ public class RenderNetDialog extends JDialog
 		double w = (double)nset.param.getWidth();
 		double h = (double)nset.param.getHeight();
 		double av = (double)Runtime.getRuntime().maxMemory();
-		double sz = 0;
 
-		if (nset.supersampling == 1)
-			sz = w * h * 4;
-		if (nset.supersampling >= 2)
-			sz = w * h * nset.supersampling * nset.supersampling * 1.5 * 4;
+		// Only the final image is kept, tokens are downscaled as they
+		// arrive.
+		double sz = w * h * 4;
 
-		if (av < sz && !lastStream)
+		if (av < sz && !nset.directStream)
 		{
 			JOptionPane.showMessageDialog(this,
 				"I'm sorry, " + RenderDialog.toSize(sz) + " memory "
@@ -300,9 +375,28 @@ public class RenderNetDialog extends JDialog
 			return;
 		}
 
+		// Is there an unfinished render of the same image?
+		Checkpoint ckpt = NetClient.findCheckpoint(nset);
+		if (ckpt != null)
+		{
+			int ret = JOptionPane.showConfirmDialog(this,
+				nset.tfile.getAbsolutePath() + "\n" +
+				"An unfinished render of this image exists ("
+				+ ckpt.countDone() + " of " + ckpt.getRows()
+				+ " rows done).\nResume it? Otherwise, it'll be overwritten.",
+				"Resume",
+				JOptionPane.YES_NO_CANCEL_OPTION);
+			ckpt.close();
+
+			if (ret == JOptionPane.YES_OPTION)
+				nset.resume = true;
+			else if (ret != JOptionPane.NO_OPTION)
+				return;
+		}
+
 		// Ok, we're ready to go. Overwrite existing file?
 		// This should be the last question.
-		if (nset.tfile.exists())
+		if (nset.tfile.exists() && !nset.resume)
 		{
 			int ret = JOptionPane.showConfirmDialog(this,
 				nset.tfile.getAbsolutePath() + "\n" +
@@ -555,7 +649,16 @@ public class RenderNetDialog extends JDialog
 		c_super = new JComboBox(new String[]
 				{ "None", "2x2", "4x4", "8x8" });
 
-		c_stream = new JCheckBox("Stream TIFF to disk (no downscaling)");
+		c_stream = new JCheckBox("Stream TIFF to disk");
+
+		c_layout = new JComboBox<String>(RenderDialog.LAYOUTS);
+		c_compression = new JComboBox<String>(RenderDialog.COMPRESSIONS);
+		c_pyramid = new JCheckBox("Store reduced resolutions");
+		c_compress = new JCheckBox("Compress pixel data (if supported)");
+		c_values = new JComboBox<String>(VALUES);
+		c_window = new JComboBox<String>(WINDOWS);
+		c_plan = new JCheckBox("Balance jobs by a cost preview");
+		c_local = new JCheckBox("Render on this computer, too");
 
 		sgbSet.add(new JLabel("Width:"),
 				0, 0, 1, 1, 1.0, 1.0);
@@ -590,6 +693,60 @@ public class RenderNetDialog extends JDialog
 		sgbSet.add(c_stream,
 				1, 4, GridBagConstraints.REMAINDER, 1, 1.0, 1.0);
 
+		sgbSet.add(new JLabel("TIFF layout:"),
+				0, 5, 1, 1, 1.0, 1.0);
+
+		sgbSet.add(c_layout,
+				1, 5, GridBagConstraints.REMAINDER, 1, 1.0, 1.0);
+
+		sgbSet.add(new JLabel("TIFF compression:"),
+				0, 6, 1, 1, 1.0, 1.0);
+
+		sgbSet.add(c_compression,
+				1, 6, GridBagConstraints.REMAINDER, 1, 1.0, 1.0);
+
+		sgbSet.add(new JLabel("TIFF pyramid:"),
+				0, 7, 1, 1, 1.0, 1.0);
+
+		sgbSet.add(c_pyramid,
+				1, 7, GridBagConstraints.REMAINDER, 1, 1.0, 1.0);
+
+		sgbSet.add(new JLabel("Network:"),
+				0, 8, 1, 1, 1.0, 1.0);
+
+		sgbSet.add(c_compress,
+				1, 8, GridBagConstraints.REMAINDER, 1, 1.0, 1.0);
+
+		sgbSet.add(new JLabel("Nodes send:"),
+				0, 9, 1, 1, 1.0, 1.0);
+
+		sgbSet.add(c_values,
+				1, 9, GridBagConstraints.REMAINDER, 1, 1.0, 1.0);
+
+		sgbSet.add(new JLabel("Jobs per node:"),
+				0, 10, 1, 1, 1.0, 1.0);
+
+		sgbSet.add(c_window,
+				1, 10, GridBagConstraints.REMAINDER, 1, 1.0, 1.0);
+
+		sgbSet.add(new JLabel("Scheduling:"),
+				0, 11, 1, 1, 1.0, 1.0);
+
+		sgbSet.add(c_plan,
+				1, 11, GridBagConstraints.REMAINDER, 1, 1.0, 1.0);
+
+		sgbSet.add(new JLabel("Local CPUs:"),
+				0, 12, 1, 1, 1.0, 1.0);
+
+		sgbSet.add(c_local,
+				1, 12, GridBagConstraints.REMAINDER, 1, 1.0, 1.0);
+
+		sgbSet.add(new JLabel("Shared directory:"),
+				0, 13, 1, 1, 1.0, 1.0);
+
+		sgbSet.add(c_shared,
+				1, 13, GridBagConstraints.REMAINDER, 1, 1.0, 1.0);
+
 		// Keep track of the check box's state
 		c_stream.addItemListener(new ItemListener()
 		{
@@ -0,0 +1,44 @@
+/*
+	Copyright 2009 Peter Hofmann
+
+	This file is part of Multifrac.
+
+	Multifrac is free software: you can redistribute it and/or modify it
+	under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Multifrac is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Multifrac. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package multifrac;
+
+import java.io.*;
+
+/**
+ * Something finished rows can be streamed to while a render is still
+ * running.
+ */
+public interface StreamTarget
+{
+	/**
+	 * Write "num" rows starting at row "row". The pixels are taken from
+	 * "px" beginning at index "off". Rows may arrive in any order.
+	 */
+	public void writeRows(int[] px, int off, int row, int num)
+		throws IOException;
+
+	/**
+	 * Make sure everything written so far has been handed to the
+	 * operating system.
+	 */
+	public void flush() throws IOException;
+
+	public void close() throws IOException;
+}
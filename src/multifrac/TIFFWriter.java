@@ -20,17 +20,208 @@
 package multifrac;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
 
 /**
  * "High-performance" TIFF-Writer, saves memory and should be used for really large images.
  */
-public class TIFFWriter
+public class TIFFWriter implements StreamTarget
 {
 	public static final int SIZE_HEADER = 8;
 	public static final int IFD_ENTRIES = 8;
 	public static final int SIZE_IFD    = 2 + IFD_ENTRIES * 12 + 4;
 	public static final int IMAGE_START = SIZE_HEADER + SIZE_IFD + 8 + 32;
 
+	public static final int DEFAULT_TILE = 256;
+	public static final int DEFAULT_ROWS_PER_STRIP = 64;
+
+	public static final int COMPRESSION_NONE     = 1;
+	public static final int COMPRESSION_DEFLATE  = 8;
+	public static final int COMPRESSION_PACKBITS = 32773;
+
+	protected static final int TAG_NEW_SUBFILE_TYPE  = 254;
+	protected static final int TAG_IMAGE_WIDTH       = 256;
+	protected static final int TAG_IMAGE_LENGTH      = 257;
+	protected static final int TAG_BITS_PER_SAMPLE   = 258;
+	protected static final int TAG_COMPRESSION       = 259;
+	protected static final int TAG_PHOTOMETRIC       = 262;
+	protected static final int TAG_STRIP_OFFSETS     = 273;
+	protected static final int TAG_SAMPLES_PER_PX    = 277;
+	protected static final int TAG_ROWS_PER_STRIP    = 278;
+	protected static final int TAG_STRIP_BYTE_COUNTS = 279;
+	protected static final int TAG_PREDICTOR         = 317;
+	protected static final int TAG_TILE_WIDTH        = 322;
+	protected static final int TAG_TILE_LENGTH       = 323;
+	protected static final int TAG_TILE_OFFSETS      = 324;
+	protected static final int TAG_TILE_BYTE_COUNTS  = 325;
+	protected static final int TAG_SUB_IFDS          = 330;
+
+	protected static final int TYPE_SHORT = 3;
+	protected static final int TYPE_LONG  = 4;
+
+	/**
+	 * Describes how the image data is organized in the file. The
+	 * default is the classic layout: All rows in one single
+	 * uncompressed strip.
+	 */
+	public static class Layout
+	{
+		/**
+		 * Size of one tile. Both values have to be multiples of 16
+		 * (that's what the TIFF spec demands). Zero means "no tiles".
+		 */
+		public int tileWidth  = 0;
+		public int tileHeight = 0;
+
+		/**
+		 * Number of rows in one strip if the image is not tiled. Zero
+		 * means "all rows in one strip".
+		 */
+		public int rowsPerStrip = 0;
+
+		/**
+		 * One of the COMPRESSION_* constants.
+		 */
+		public int compression = COMPRESSION_NONE;
+
+		/**
+		 * Store reduced resolution versions of the image as SubIFDs.
+		 */
+		public boolean pyramid = false;
+
+		public Layout()
+		{
+		}
+
+		public Layout(int tw, int th)
+		{
+			tileWidth  = tw;
+			tileHeight = th;
+		}
+
+		public Layout(Layout l)
+		{
+			tileWidth    = l.tileWidth;
+			tileHeight   = l.tileHeight;
+			rowsPerStrip = l.rowsPerStrip;
+			compression  = l.compression;
+			pyramid      = l.pyramid;
+		}
+
+		/**
+		 * Build a layout from the indices of the LAYOUTS and
+		 * COMPRESSIONS combo boxes in RenderDialog (layout: 0 = strips,
+		 * 1 = tiles; compression: 0 = none, 1 = Deflate, 2 = PackBits).
+		 * Returns null for the classic layout.
+		 */
+		public static Layout of(int layout, int compression, boolean pyramid)
+		{
+			Layout l = new Layout();
+
+			if (layout == 1)
+			{
+				l.tileWidth  = DEFAULT_TILE;
+				l.tileHeight = DEFAULT_TILE;
+			}
+
+			switch (compression)
+			{
+				case 1:
+					l.compression = COMPRESSION_DEFLATE;
+					break;
+				case 2:
+					l.compression = COMPRESSION_PACKBITS;
+					break;
+			}
+
+			l.pyramid = pyramid;
+
+			// Compressed strips must not be too large.
+			if ((l.isCompressed() || l.pyramid) && !l.isTiled())
+				l.rowsPerStrip = DEFAULT_ROWS_PER_STRIP;
+
+			return (l.isClassic() ? null : l);
+		}
+
+		public boolean isTiled()
+		{
+			return tileWidth > 0 && tileHeight > 0;
+		}
+
+		public boolean isCompressed()
+		{
+			return compression != COMPRESSION_NONE;
+		}
+
+		/**
+		 * The classic layout can be written without any buffering.
+		 */
+		public boolean isClassic()
+		{
+			return !isTiled() && rowsPerStrip <= 0 && !isCompressed()
+				&& !pyramid;
+		}
+
+		@Override
+		public String toString()
+		{
+			String s;
+			if (isTiled())
+				s = "Tiles " + tileWidth + "x" + tileHeight;
+			else if (rowsPerStrip > 0)
+				s = "Strips of " + rowsPerStrip + " rows";
+			else
+				s = "Single strip";
+
+			switch (compression)
+			{
+				case COMPRESSION_DEFLATE:
+					s += ", Deflate";
+					break;
+				case COMPRESSION_PACKBITS:
+					s += ", PackBits";
+					break;
+			}
+
+			if (pyramid)
+				s += ", Pyramid";
+
+			return s;
+		}
+	}
+
+	/**
+	 * A row of chunks (tiles or one strip) which is still being
+	 * assembled. Rows may arrive in any order, the band will be written
+	 * once all of them are present.
+	 */
+	private static class Band
+	{
+		public byte[] rgb = null;
+		public boolean[] have = null;
+		public int missing = 0;
+
+		public Band(int w, int rows, int total)
+		{
+			rgb     = new byte[w * rows * 3];
+			have    = new boolean[rows];
+			missing = total;
+		}
+	}
+
+	/**
+	 * Check whether files using this layout can be resumed, that is,
+	 * whether each row is stored at a fixed position.
+	 */
+	public static boolean isResumable(Layout layout)
+	{
+		return (layout == null || layout.isClassic());
+	}
+
 	/**
 	 * Write the image to the file. It'll be uncompressed.
 	 */
@@ -42,28 +233,510 @@ public class TIFFWriter
 		stream.close();
 	}
 
+	/**
+	 * Write the image to the file using the given layout.
+	 */
+	public static void writeRGBImage(File f, int[] img, int w, int h,
+			Layout layout) throws IOException
+	{
+		TIFFWriter stream = new TIFFWriter(f, w, h, layout);
+		stream.writeRows(img, 0, 0, h);
+		stream.close();
+	}
+
 
+	private RandomAccessFile raf = null;
 	private FileOutputStream fos = null;
 	private DataOutputStream dos = null;
 	private BufferedOutputStream bos = null;
+	private FileChannel chan = null;
 	private int w = 0;
 	private int h = 0;
 
+	// Chunked layout (tiles or strips)
+	private boolean chunked = false;
+	private boolean tiled = false;
+	private int compression = COMPRESSION_NONE;
+	private int tileW = 0;
+	private int chunkH = 0;
+	private Level[] levels = null;
+
+	// Compressed chunks are appended by a pool of worker threads.
+	private ExecutorService pool = null;
+	private Semaphore inFlight = null;
+	private final Object appendLock = new Object();
+	private long appendPos = 0;
+	private IOException asyncError = null;
+
+	/**
+	 * One image in the file: Either the full resolution image or one of
+	 * the reduced resolution versions. Each level collects its rows in
+	 * bands. Once a band has been written, it is reduced and handed to
+	 * the next level. So the whole pyramid is built in one pass and only
+	 * a few incomplete bands per level are kept in memory.
+	 */
+	private class Level
+	{
+		public int lw, lh;
+		public int chunkW;
+		public int across, down;
+		public Level next = null;
+		public boolean isSub = false;
+
+		public long[] offsets = null;
+		public long[] counts = null;
+		public boolean[] bandDone = null;
+		public HashMap<Integer, Band> pending = new HashMap<Integer, Band>();
+
+		// Positions of this level's IFD and tables in the file.
+		public int entries = 0;
+		public long posIFD = 0;
+		public long posBits = 0;
+		public long posOffsets = 0;
+		public long posCounts = 0;
+		public long posEnd = 0;
+
+		// If there's only one chunk, its offset and byte count are
+		// stored directly in the IFD. Remember where.
+		public long patchOffsets = 0;
+		public long patchCounts = 0;
+
+		public Level(int lw, int lh, boolean isSub)
+		{
+			this.lw    = lw;
+			this.lh    = lh;
+			this.isSub = isSub;
+
+			chunkW = (tiled ? tileW : lw);
+			across = (lw + chunkW - 1) / chunkW;
+			down   = (lh + chunkH - 1) / chunkH;
+
+			offsets  = new long[across * down];
+			counts   = new long[across * down];
+			bandDone = new boolean[down];
+		}
+
+		public int numChunks()
+		{
+			return across * down;
+		}
+
+		/**
+		 * Number of image rows in the given band.
+		 */
+		public int bandRows(int b)
+		{
+			return Math.min(chunkH, lh - b * chunkH);
+		}
+
+		/**
+		 * Number of bytes of an uncompressed chunk.
+		 */
+		public long chunkBytes(int i)
+		{
+			int rows = (tiled ? chunkH : bandRows(i / across));
+			return (long)chunkW * rows * 3;
+		}
+
+		/**
+		 * Compute the positions of the IFD and tables.
+		 */
+		public long place(long at, int numSubs)
+		{
+			entries = (tiled ? 10 : 9);
+			if (compression == COMPRESSION_DEFLATE)
+				entries++;
+			if (isSub)
+				entries++;
+			if (numSubs > 0)
+				entries++;
+
+			int num = numChunks();
+
+			posIFD     = at;
+			posBits    = posIFD + 2 + entries * 12 + 4;
+			posOffsets = posBits + 8;
+			posCounts  = posOffsets + (num > 1 ? 4 * num : 0);
+			posEnd     = posCounts  + (num > 1 ? 4 * num : 0);
+
+			return posEnd;
+		}
+
+		/**
+		 * Add rows of RGB data (3 bytes per pixel). They may arrive in
+		 * any order.
+		 */
+		public void putRows(byte[] rgb, int off, int row, int num)
+			throws IOException
+		{
+			for (int y = row; y < row + num; y++, off += lw * 3)
+			{
+				int b = y / chunkH;
+
+				// Rows of bands which have already been written are
+				// ignored (this can happen if a job is rendered twice).
+				if (bandDone[b])
+					continue;
+
+				Band band = pending.get(b);
+				if (band == null)
+				{
+					band = new Band(lw, chunkH, bandRows(b));
+					pending.put(b, band);
+				}
+
+				int r = y - b * chunkH;
+				if (band.have[r])
+					continue;
+
+				System.arraycopy(rgb, off, band.rgb, r * lw * 3, lw * 3);
+				band.have[r] = true;
+				band.missing--;
+
+				if (band.missing == 0)
+				{
+					pending.remove(b);
+					writeBand(b, band);
+				}
+			}
+		}
+
+		/**
+		 * Write all bands which are still incomplete.
+		 */
+		public void finish() throws IOException
+		{
+			for (int b = 0; b < down; b++)
+			{
+				if (bandDone[b])
+					continue;
+
+				Band band = pending.remove(b);
+				if (band == null)
+					band = new Band(lw, chunkH, 0);
+
+				writeBand(b, band);
+			}
+		}
+
+		/**
+		 * Cut a band into chunks and write them. Tiles on the right and
+		 * bottom edge are padded. Compressed chunks are handed to the
+		 * pool. Afterwards, the band is passed on to the next level.
+		 */
+		private void writeBand(int b, Band band) throws IOException
+		{
+			int rows = bandRows(b);
+
+			for (int cx = 0; cx < across; cx++)
+			{
+				final int index = b * across + cx;
+				final byte[] chunk;
+				final int chunkRows;
+
+				if (tiled)
+				{
+					int x0   = cx * chunkW;
+					int cols = Math.min(chunkW, lw - x0);
+
+					chunk = new byte[chunkW * chunkH * 3];
+					chunkRows = chunkH;
+					for (int r = 0; r < rows; r++)
+					{
+						System.arraycopy(
+								band.rgb, (r * lw + x0) * 3,
+								chunk, r * chunkW * 3,
+								cols * 3);
+					}
+				}
+				else
+				{
+					// Strips are not padded, the last one may be
+					// shorter.
+					chunk = band.rgb;
+					chunkRows = rows;
+				}
+
+				if (compression == COMPRESSION_NONE)
+				{
+					writeAt(chunk, chunkW * chunkRows * 3, offsets[index]);
+					continue;
+				}
+
+				try
+				{
+					inFlight.acquire();
+				}
+				catch (InterruptedException e)
+				{
+					throw new InterruptedIOException(
+							"TIFFWriter: Interrupted while waiting for compressor.");
+				}
+
+				final Level me = this;
+				pool.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							byte[] data = compress(chunk, chunkW, chunkRows);
+							append(me, index, data);
+						}
+						catch (IOException e)
+						{
+							synchronized (appendLock)
+							{
+								if (asyncError == null)
+									asyncError = e;
+							}
+						}
+						finally
+						{
+							inFlight.release();
+						}
+					}
+				});
+			}
+
+			bandDone[b] = true;
+
+			// Feed the next level. As chunkH is even, each band of this
+			// level makes up one half of a band of the next level.
+			if (next != null)
+			{
+				byte[] half = ImageOperations.halveRGB(band.rgb, lw, rows);
+				next.putRows(half, 0, b * chunkH / 2, (rows + 1) / 2);
+			}
+		}
+
+		/**
+		 * Write this level's IFD.
+		 */
+		public void writeIFD(DataOutputStream out, int numSubs, long subs)
+			throws IOException
+		{
+			int num = numChunks();
+
+			// IFD, tags in ascending order
+			out.writeShort(entries);
+
+			if (isSub)
+				writeEntry(out, TAG_NEW_SUBFILE_TYPE, TYPE_LONG, 1, 1);
+
+			writeEntry(out, TAG_IMAGE_WIDTH,     TYPE_LONG,  1, lw);
+			writeEntry(out, TAG_IMAGE_LENGTH,    TYPE_LONG,  1, lh);
+			writeEntry(out, TAG_BITS_PER_SAMPLE, TYPE_SHORT, 3, posBits);
+			writeEntry(out, TAG_COMPRESSION,     TYPE_SHORT, 1, compression);
+			writeEntry(out, TAG_PHOTOMETRIC,     TYPE_SHORT, 1, 2);
+
+			if (!tiled)
+			{
+				patchOffsets = out.size() + 8;
+				writeEntry(out, TAG_STRIP_OFFSETS, TYPE_LONG, num,
+						(num > 1 ? posOffsets : offsets[0]));
+			}
+
+			writeEntry(out, TAG_SAMPLES_PER_PX,  TYPE_SHORT, 1, 3);
+
+			if (!tiled)
+			{
+				writeEntry(out, TAG_ROWS_PER_STRIP, TYPE_LONG, 1, chunkH);
+
+				patchCounts = out.size() + 8;
+				writeEntry(out, TAG_STRIP_BYTE_COUNTS, TYPE_LONG, num,
+						(num > 1 ? posCounts : counts[0]));
+			}
+
+			if (compression == COMPRESSION_DEFLATE)
+				writeEntry(out, TAG_PREDICTOR, TYPE_SHORT, 1, 2);
+
+			if (tiled)
+			{
+				writeEntry(out, TAG_TILE_WIDTH,  TYPE_LONG, 1, chunkW);
+				writeEntry(out, TAG_TILE_LENGTH, TYPE_LONG, 1, chunkH);
+
+				patchOffsets = out.size() + 8;
+				writeEntry(out, TAG_TILE_OFFSETS, TYPE_LONG, num,
+						(num > 1 ? posOffsets : offsets[0]));
+
+				patchCounts = out.size() + 8;
+				writeEntry(out, TAG_TILE_BYTE_COUNTS, TYPE_LONG, num,
+						(num > 1 ? posCounts : counts[0]));
+			}
+
+			if (numSubs > 0)
+				writeEntry(out, TAG_SUB_IFDS, TYPE_LONG, numSubs, subs);
+
+			// No next IFD. Sub-images are referenced via SubIFDs.
+			out.writeInt(0);
+
+			// VALUE for BitsPerSample (plus padding)
+			out.writeInt(0x00080008);
+			out.writeInt(0x00080000);
+		}
+
+		/**
+		 * Write offset and byte count tables. If there's only one
+		 * chunk, patch the values in the IFD.
+		 */
+		public void writeTables() throws IOException
+		{
+			int num = numChunks();
+
+			if (num == 1)
+			{
+				writeAt(intBytes(offsets[0]), patchOffsets);
+				writeAt(intBytes(counts[0]),  patchCounts);
+				return;
+			}
+
+			ByteArrayOutputStream buf = new ByteArrayOutputStream(8 * num);
+			DataOutputStream out = new DataOutputStream(buf);
+
+			for (int i = 0; i < num; i++)
+				out.writeInt((int)offsets[i]);
+			for (int i = 0; i < num; i++)
+				out.writeInt((int)counts[i]);
+
+			out.flush();
+			writeAt(buf.toByteArray(), posOffsets);
+		}
+	}
+
 	/**
 	 * Create a new TIFF-Streamer.
 	 */
 	public TIFFWriter(File f, int w, int h) throws IOException
 	{
+		this(f, w, h, null);
+	}
+
+	/**
+	 * Create a new TIFF-Streamer using the given layout. If the layout
+	 * is null, the classic single strip layout will be used.
+	 */
+	public TIFFWriter(File f, int w, int h, Layout layout) throws IOException
+	{
+		this(f, w, h, layout, false);
+	}
+
+	/**
+	 * Create a new TIFF-Streamer. If "resume" is set, an existing file
+	 * is opened without truncating it, so rows written by an earlier run
+	 * are kept. This is only possible for the classic layout, where every
+	 * row has a fixed position.
+	 */
+	public TIFFWriter(File f, int w, int h, Layout layout, boolean resume)
+		throws IOException
+	{
+		if (resume && !isResumable(layout))
+			throw new IllegalArgumentException(
+					"TIFFWriter: Only the classic layout can be resumed.");
+
 		this.w = w;
 		this.h = h;
 
+		if (layout != null && !layout.isClassic())
+		{
+			chunked     = true;
+			compression = layout.compression;
+
+			if (layout.isTiled())
+			{
+				if (layout.tileWidth % 16 != 0 || layout.tileHeight % 16 != 0)
+					throw new IllegalArgumentException(
+							"TIFFWriter: Tile size must be a multiple of 16.");
+
+				tiled  = true;
+				tileW  = layout.tileWidth;
+				chunkH = layout.tileHeight;
+			}
+			else
+			{
+				chunkH = layout.rowsPerStrip;
+				if (chunkH <= 0)
+					chunkH = DEFAULT_ROWS_PER_STRIP;
+
+				// Bands are reduced 2x2 for the pyramid.
+				if (layout.pyramid && chunkH % 2 != 0)
+					chunkH++;
+			}
+
+			// Full resolution image plus reduced versions until the
+			// image fits into one tile.
+			ArrayList<Level> list = new ArrayList<Level>();
+			int lw = w, lh = h;
+			int limit = (tiled ? Math.max(tileW, chunkH) : DEFAULT_TILE);
+			do
+			{
+				list.add(new Level(lw, lh, !list.isEmpty()));
+				lw = (lw + 1) / 2;
+				lh = (lh + 1) / 2;
+			} while (layout.pyramid && (lw > limit / 2 || lh > limit / 2)
+					&& lw > 1 && lh > 1);
+
+			levels = list.toArray(new Level[0]);
+			for (int i = 0; i < levels.length - 1; i++)
+				levels[i].next = levels[i + 1];
+		}
+
 		// Try to open the file
-		fos = new FileOutputStream(f);
+		if (resume)
+		{
+			raf = new RandomAccessFile(f, "rw");
+			fos = new FileOutputStream(raf.getFD());
+		}
+		else
+			fos = new FileOutputStream(f);
 		dos = new DataOutputStream(fos);
 		bos = new BufferedOutputStream(fos);
+		chan = fos.getChannel();
 
 		// Init the target: Write the header.
-		writeHeader();
+		if (chunked)
+			writeChunkedHeader();
+		else
+			writeHeader();
+
+		// Compression is done in parallel. Limit the number of chunks
+		// in the queue so we don't run out of memory if the disk is
+		// slower than the renderer.
+		if (chunked && compression != COMPRESSION_NONE)
+		{
+			int threads = Multifrac.numthreads;
+			inFlight = new Semaphore(levels[0].across + 4 * threads);
+			pool = Executors.newFixedThreadPool(threads, new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "TIFFWriter compressor");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Give a file in the classic layout its full size, so others can
+	 * write rows right into it. Returns the size.
+	 */
+	public synchronized long allocate() throws IOException
+	{
+		if (chunked)
+			throw new IllegalStateException(
+					"TIFFWriter: Only the classic layout has fixed rows.");
+
+		long size = IMAGE_START + (long)w * h * 3;
+		if (chan.size() < size)
+			writeAt(new byte[1], size - 1);
+
+		flush();
+		chan.force(false);
+		return size;
 	}
 
 	/**
@@ -79,15 +752,53 @@ public class TIFFWriter
 	 */
 	public void seekRow(int row) throws IOException
 	{
-		seek(w * row * 3);
+		seek((long)w * row * 3);
 	}
 
 	/**
-	 * Close the file stream.
+	 * Close the file stream. Bands which are still incomplete will be
+	 * written as they are, so an aborted render still results in a
+	 * readable file.
 	 */
-	public void close() throws IOException
+	public synchronized void close() throws IOException
 	{
-		fos.close();
+		try
+		{
+			if (chunked)
+			{
+				// Each level feeds the next one, so go from top to
+				// bottom.
+				for (Level l : levels)
+					l.finish();
+
+				if (pool != null)
+				{
+					pool.shutdown();
+					while (!pool.awaitTermination(1, TimeUnit.SECONDS));
+
+					checkAsyncError();
+
+					// Now that all chunks are known, write the final
+					// offset tables.
+					for (Level l : levels)
+						l.writeTables();
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException(
+					"TIFFWriter: Interrupted while compressing.");
+		}
+		finally
+		{
+			if (pool != null)
+				pool.shutdownNow();
+
+			fos.close();
+			if (raf != null)
+				raf.close();
+		}
 	}
 
 	/**
@@ -123,6 +834,175 @@ public class TIFFWriter
 		bos.flush();
 	}
 
+	/**
+	 * Write "num" rows starting at image row "row". The pixels are taken
+	 * from "px" beginning at index "off". This works for all layouts and
+	 * the rows may be written in any order.
+	 *
+	 * In chunked mode, rows are collected until a whole row of tiles (or
+	 * a whole strip) is complete. Each chunk is then written exactly
+	 * once.
+	 */
+	public synchronized void writeRows(int[] px, int off, int row, int num)
+		throws IOException
+	{
+		byte[] rgb = new byte[w * num * 3];
+		packRGB(px, off, rgb, 0, w * num);
+
+		if (!chunked)
+		{
+			writeAt(rgb, IMAGE_START + (long)w * row * 3);
+			return;
+		}
+
+		checkAsyncError();
+		levels[0].putRows(rgb, 0, row, num);
+	}
+
+	/**
+	 * Internal use: Convert ARGB ints to RGB bytes.
+	 */
+	private static void packRGB(int[] px, int off, byte[] rgb, int at, int num)
+	{
+		for (int i = off; i < off + num; i++)
+		{
+			rgb[at++] = (byte)(px[i] >> 16);
+			rgb[at++] = (byte)(px[i] >>  8);
+			rgb[at++] = (byte)(px[i]      );
+		}
+	}
+
+	/**
+	 * Internal use: Write a complete buffer at the given file position.
+	 */
+	private void writeAt(byte[] data, long pos) throws IOException
+	{
+		writeAt(data, data.length, pos);
+	}
+
+	private void writeAt(byte[] data, int len, long pos) throws IOException
+	{
+		ByteBuffer bb = ByteBuffer.wrap(data, 0, len);
+		while (bb.hasRemaining())
+			pos += chan.write(bb, pos);
+	}
+
+	/**
+	 * Internal use: Rethrow an error that occured on a worker thread.
+	 */
+	private void checkAsyncError() throws IOException
+	{
+		synchronized (appendLock)
+		{
+			if (asyncError != null)
+				throw asyncError;
+		}
+	}
+
+	/**
+	 * Internal use: Reserve space at the end of the file for a
+	 * compressed chunk and write it there.
+	 */
+	private void append(Level l, int index, byte[] data) throws IOException
+	{
+		long pos;
+		synchronized (appendLock)
+		{
+			pos = appendPos;
+			appendPos += data.length;
+
+			// Classic TIFF uses 32 bit offsets.
+			if (appendPos > 0xFFFFFFFFL)
+				throw new IOException("TIFFWriter: Image too large (> 4 GB).");
+
+			l.offsets[index] = pos;
+			l.counts[index]  = data.length;
+		}
+
+		// Positional writes don't interfere with each other.
+		writeAt(data, pos);
+	}
+
+	/**
+	 * Internal use: Compress one chunk.
+	 */
+	private byte[] compress(byte[] chunk, int cols, int rows)
+	{
+		int len = cols * rows * 3;
+		ByteArrayOutputStream out = new ByteArrayOutputStream(len / 4 + 64);
+
+		if (compression == COMPRESSION_DEFLATE)
+		{
+			// Horizontal differencing (Predictor = 2) turns smooth
+			// gradients into runs of small values.
+			byte[] pred = new byte[len];
+			for (int r = 0; r < rows; r++)
+			{
+				int at = r * cols * 3;
+				for (int i = 0; i < 3; i++)
+					pred[at + i] = chunk[at + i];
+				for (int i = 3; i < cols * 3; i++)
+					pred[at + i] = (byte)(chunk[at + i] - chunk[at + i - 3]);
+			}
+
+			Deflater def = new Deflater();
+			def.setInput(pred, 0, len);
+			def.finish();
+
+			byte[] buf = new byte[65536];
+			while (!def.finished())
+			{
+				int n = def.deflate(buf);
+				out.write(buf, 0, n);
+			}
+			def.end();
+		}
+		else if (compression == COMPRESSION_PACKBITS)
+		{
+			// Each row has to be packed separately.
+			for (int r = 0; r < rows; r++)
+				packBits(chunk, r * cols * 3, cols * 3, out);
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Internal use: PackBits encoding of one row.
+	 */
+	private static void packBits(byte[] in, int start, int len,
+			ByteArrayOutputStream out)
+	{
+		int i   = start;
+		int end = start + len;
+
+		while (i < end)
+		{
+			// Replicate run?
+			int run = 1;
+			while (i + run < end && run < 128 && in[i + run] == in[i])
+				run++;
+
+			if (run >= 2)
+			{
+				out.write(1 - run);
+				out.write(in[i]);
+				i += run;
+				continue;
+			}
+
+			// Literal run: Stop where the next replicate run starts.
+			int j = i + 1;
+			while (j < end && j - i < 128
+					&& !(j + 1 < end && in[j] == in[j + 1]))
+				j++;
+
+			out.write(j - i - 1);
+			out.write(in, i, j - i);
+			i = j;
+		}
+	}
+
 	/**
 	 * Write a single pixel.
 	 */
@@ -205,4 +1085,110 @@ public class TIFFWriter
 		for (int i = 0; i < 8; i++)
 			dos.writeInt(0);
 	}
+
+	/**
+	 * Internal use: Write one IFD entry.
+	 */
+	private static void writeEntry(DataOutputStream out, int tag, int type,
+			int count, long value) throws IOException
+	{
+		out.writeShort(tag);
+		out.writeShort(type);
+		out.writeInt(count);
+
+		// Single SHORT values are left-justified.
+		if (type == TYPE_SHORT && count == 1)
+		{
+			out.writeShort((int)value);
+			out.writeShort(0);
+		}
+		else
+			out.writeInt((int)value);
+	}
+
+	/**
+	 * Internal use: Write TIFF header for a chunked layout.
+	 *
+	 * The file looks like this: Header, the main IFD, BitsPerSample,
+	 * offset table and byte count table, the same for each reduced
+	 * resolution level, the list of SubIFDs and then all the chunks. If
+	 * the chunks are not compressed, they're stored level by level in
+	 * row-major order and the position of each chunk is known in
+	 * advance. Compressed chunks are appended in whatever order they are
+	 * finished, the tables are completed when the file is closed.
+	 */
+	private void writeChunkedHeader() throws IOException
+	{
+		int numSubs = levels.length - 1;
+
+		// Place all IFDs.
+		long at = SIZE_HEADER;
+		for (int i = 0; i < levels.length; i++)
+			at = levels[i].place(at, (i == 0 ? numSubs : 0));
+
+		long posSubs = at;
+		if (numSubs > 1)
+			at += 4 * numSubs;
+
+		// Place the chunks.
+		if (compression == COMPRESSION_NONE)
+		{
+			for (Level l : levels)
+			{
+				for (int i = 0; i < l.numChunks(); i++)
+				{
+					l.offsets[i] = at;
+					l.counts[i]  = l.chunkBytes(i);
+					at += l.counts[i];
+				}
+			}
+
+			// Classic TIFF uses 32 bit offsets.
+			if (at > 0xFFFFFFFFL)
+				throw new IOException("TIFFWriter: Image too large (> 4 GB).");
+		}
+		else
+			appendPos = at;
+
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+
+		// BigEndian and Magic Number, first IFD directly after header.
+		out.writeInt(0x4D4D002A);
+		out.writeInt(SIZE_HEADER);
+
+		for (int i = 0; i < levels.length; i++)
+		{
+			Level l = levels[i];
+
+			long subs = 0;
+			if (i == 0 && numSubs > 0)
+				subs = (numSubs > 1 ? posSubs : levels[1].posIFD);
+
+			l.writeIFD(out, (i == 0 ? numSubs : 0), subs);
+
+			// Leave room for the tables.
+			while (out.size() < l.posEnd)
+				out.writeByte(0);
+		}
+
+		if (numSubs > 1)
+			for (int i = 1; i < levels.length; i++)
+				out.writeInt((int)levels[i].posIFD);
+
+		out.flush();
+		writeAt(buf.toByteArray(), 0);
+
+		for (Level l : levels)
+			l.writeTables();
+	}
+
+	/**
+	 * Internal use: Big endian representation of a 32 bit value.
+	 */
+	private static byte[] intBytes(long v)
+	{
+		return new byte[] {
+			(byte)(v >> 24), (byte)(v >> 16), (byte)(v >> 8), (byte)v };
+	}
 }
@@ -0,0 +1,414 @@
+/*
+	Copyright 2009 Peter Hofmann
+
+	This file is part of Multifrac.
+
+	Multifrac is free software: you can redistribute it and/or modify it
+	under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Multifrac is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Multifrac. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package multifrac;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Writes an image as a pyramid of PNG tiles for web viewers.
+ *
+ *  - Deep Zoom ("image.dzi"): The descriptor is written to image.dzi,
+ *    the tiles go to image_files/LEVEL/COL_ROW.png. Level 0 is 1x1
+ *    pixel, the last level has full resolution.
+ *
+ *  - XYZ ("image.xyz"): The tiles go to image/Z/X/Y.png. Zoom level 0
+ *    is a single tile. All tiles are 256x256, the image is placed in the
+ *    upper left corner and padded with black.
+ *
+ * Rows are collected in bands of one tile row. Once a band is complete,
+ * its tiles are written and the band is reduced 2x2 and handed to the
+ * next level. So only incomplete bands are kept in memory.
+ */
+public class TilePyramidWriter implements StreamTarget
+{
+	public static final int FORMAT_DZI = 0;
+	public static final int FORMAT_XYZ = 1;
+
+	public static final int TILE = 256;
+
+	protected static final int PAD = 0xFF000000;
+
+	/**
+	 * Determine the format from the file name. Returns -1 if the file is
+	 * not a tile pyramid.
+	 */
+	public static int formatOf(File f)
+	{
+		String n = f.getName().toLowerCase();
+		if (n.endsWith(".dzi"))
+			return FORMAT_DZI;
+		if (n.endsWith(".xyz"))
+			return FORMAT_XYZ;
+		return -1;
+	}
+
+	/**
+	 * Write the image as a tile pyramid.
+	 */
+	public static void writeRGBImage(File f, int[] img, int w, int h)
+		throws IOException
+	{
+		TilePyramidWriter tp = new TilePyramidWriter(f, w, h, formatOf(f));
+		tp.writeRows(img, 0, 0, h);
+		tp.close();
+	}
+
+
+	/**
+	 * A tile row which is still being assembled.
+	 */
+	private static class Band
+	{
+		public int[] px = null;
+		public boolean[] have = null;
+		public int missing = 0;
+
+		public Band(int w, int rows)
+		{
+			px      = new int[w * rows];
+			have    = new boolean[rows];
+			missing = rows;
+		}
+	}
+
+	/**
+	 * One level of the pyramid.
+	 */
+	private class Level
+	{
+		public int lw, lh;
+		public int number;
+		public File dir = null;
+		public Level next = null;
+		public HashMap<Integer, Band> pending = new HashMap<Integer, Band>();
+		public boolean[] bandDone = null;
+
+		public Level(int lw, int lh, int number)
+		{
+			this.lw = lw;
+			this.lh = lh;
+			this.number = number;
+
+			bandDone = new boolean[(lh + TILE - 1) / TILE];
+			dir = new File(base, Integer.toString(number));
+		}
+
+		public int bandRows(int b)
+		{
+			return Math.min(TILE, lh - b * TILE);
+		}
+
+		/**
+		 * Add rows to this level. Complete bands will be written.
+		 */
+		public void putRows(int[] px, int off, int row, int num)
+			throws IOException
+		{
+			for (int i = 0; i < num; i++, off += lw)
+			{
+				int r = row + i;
+				if (r >= lh)
+					break;
+
+				int b = r / TILE;
+				if (bandDone[b])
+					continue;
+
+				Band band = pending.get(b);
+				if (band == null)
+				{
+					band = new Band(lw, bandRows(b));
+					pending.put(b, band);
+				}
+
+				int inBand = r - b * TILE;
+				if (band.have[inBand])
+					continue;
+
+				System.arraycopy(px, off, band.px, inBand * lw, lw);
+				band.have[inBand] = true;
+				band.missing--;
+
+				if (band.missing == 0)
+				{
+					pending.remove(b);
+					bandDone[b] = true;
+					writeBand(b, band.px);
+				}
+			}
+		}
+
+		/**
+		 * Write the tiles of a complete band and pass the reduced band
+		 * to the next level.
+		 */
+		public void writeBand(int b, int[] px) throws IOException
+		{
+			int rows = bandRows(b);
+
+			for (int x = 0, col = 0; x < lw; x += TILE, col++)
+			{
+				int tw = Math.min(TILE, lw - x);
+				int[] tile;
+				int outW, outH;
+
+				if (format == FORMAT_XYZ)
+				{
+					outW = outH = TILE;
+					tile = new int[TILE * TILE];
+					Arrays.fill(tile, PAD);
+				}
+				else
+				{
+					outW = tw;
+					outH = rows;
+					tile = new int[tw * rows];
+				}
+
+				for (int y = 0; y < rows; y++)
+					System.arraycopy(px, y * lw + x, tile, y * outW, tw);
+
+				File f;
+				if (format == FORMAT_DZI)
+					f = new File(dir, col + "_" + b + ".png");
+				else
+					f = new File(new File(dir, Integer.toString(col)),
+							b + ".png");
+
+				writeTile(f, tile, outW, outH);
+			}
+
+			if (next != null)
+			{
+				int[] half = ImageOperations.halveARGB(px, lw, rows);
+				next.putRows(half, 0, b * TILE / 2, (rows + 1) / 2);
+			}
+		}
+
+		/**
+		 * Write bands which are still incomplete (aborted render).
+		 * Missing rows stay black.
+		 */
+		public void finish() throws IOException
+		{
+			ArrayList<Integer> keys = new ArrayList<Integer>(pending.keySet());
+			Collections.sort(keys);
+			for (Integer b : keys)
+			{
+				Band band = pending.remove(b);
+				bandDone[b] = true;
+				writeBand(b, band.px);
+			}
+		}
+	}
+
+
+	private int w = 0;
+	private int h = 0;
+	private int format = FORMAT_DZI;
+	private File base = null;
+	private Level[] levels = null;
+
+	// Tiles are encoded in parallel.
+	private ExecutorService pool = null;
+	private Semaphore inFlight = null;
+	private IOException asyncError = null;
+
+	/**
+	 * Create a new pyramid. For FORMAT_DZI, "f" is the descriptor. For
+	 * FORMAT_XYZ, the tiles go to a directory named like "f" without its
+	 * extension.
+	 */
+	public TilePyramidWriter(File f, int w, int h, int format)
+		throws IOException
+	{
+		this.w = w;
+		this.h = h;
+		this.format = format;
+
+		String name = f.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0)
+			name = name.substring(0, dot);
+
+		if (format == FORMAT_DZI)
+		{
+			base = new File(f.getParentFile(), name + "_files");
+			writeDescriptor(f);
+		}
+		else if (format == FORMAT_XYZ)
+			base = new File(f.getParentFile(), name);
+		else
+			throw new IllegalArgumentException(
+					"TilePyramidWriter: Unknown format.");
+
+		// Number of levels: DZI goes down to 1x1, XYZ to one tile.
+		int max = 0;
+		int limit = (format == FORMAT_DZI ? 1 : TILE);
+		while ((long)limit << max < Math.max(w, h))
+			max++;
+
+		levels = new Level[max + 1];
+		int lw = w, lh = h;
+		for (int i = max; i >= 0; i--)
+		{
+			levels[max - i] = new Level(lw, lh, i);
+			lw = (lw + 1) / 2;
+			lh = (lh + 1) / 2;
+		}
+		for (int i = 0; i < levels.length - 1; i++)
+			levels[i].next = levels[i + 1];
+
+		int threads = Multifrac.numthreads;
+		inFlight = new Semaphore(4 * threads);
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "TilePyramidWriter encoder");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Write "num" rows starting at row "row". Rows may arrive in any
+	 * order.
+	 */
+	public synchronized void writeRows(int[] px, int off, int row, int num)
+		throws IOException
+	{
+		checkAsyncError();
+		levels[0].putRows(px, off, row, num);
+	}
+
+	/**
+	 * Nothing to do, tiles are written as soon as they're complete.
+	 */
+	public void flush() throws IOException
+	{
+	}
+
+	/**
+	 * Write the remaining tiles and wait until all of them are encoded.
+	 */
+	public synchronized void close() throws IOException
+	{
+		try
+		{
+			for (Level l : levels)
+				l.finish();
+
+			pool.shutdown();
+			while (!pool.awaitTermination(1, TimeUnit.SECONDS));
+
+			checkAsyncError();
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException(
+					"TilePyramidWriter: Interrupted while encoding.");
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Internal use: Encode a tile on the pool.
+	 */
+	private void writeTile(final File f, final int[] tile, final int tw,
+			final int th) throws IOException
+	{
+		File dir = f.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("TilePyramidWriter: Could not create "
+					+ dir);
+
+		try
+		{
+			inFlight.acquire();
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException(
+					"TilePyramidWriter: Interrupted while waiting.");
+		}
+
+		pool.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					PNGWriter.writeRGBImage(f, tile, tw, th);
+				}
+				catch (IOException e)
+				{
+					synchronized (pool)
+					{
+						if (asyncError == null)
+							asyncError = e;
+					}
+				}
+				finally
+				{
+					inFlight.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Internal use: Rethrow an error that occured on a worker thread.
+	 */
+	private void checkAsyncError() throws IOException
+	{
+		synchronized (pool)
+		{
+			if (asyncError != null)
+				throw asyncError;
+		}
+	}
+
+	/**
+	 * Internal use: Write the Deep Zoom descriptor.
+	 */
+	private void writeDescriptor(File f) throws IOException
+	{
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(
+					new FileOutputStream(f), "UTF-8"));
+		out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		out.println("<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\""
+				+ " TileSize=\"" + TILE + "\" Overlap=\"0\" Format=\"png\">");
+		out.println("\t<Size Width=\"" + w + "\" Height=\"" + h + "\"/>");
+		out.println("</Image>");
+		out.close();
+
+		if (out.checkError())
+			throw new IOException("TilePyramidWriter: Could not write " + f);
+	}
+}
@@ -0,0 +1,348 @@
+/*
+	Copyright 2009 Peter Hofmann
+
+	This file is part of Multifrac.
+
+	Multifrac is free software: you can redistribute it and/or modify it
+	under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Multifrac is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Multifrac. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package multifrac.net;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Hands out the bunches of a distributed render to the clients.
+ *
+ * Every bunch has 3 states:
+ *
+ *  - unrendered: NetClient.CONST_FREE
+ *  - finished: NetClient.CONST_DONE
+ *  - WIP: ID of the client
+ *
+ * Free bunches are kept as a set of ranges, so a client finds the next
+ * one in O(log n) instead of scanning all bunches. The progress bar gets
+ * snapshots of the states outside of the lock.
+ *
+ * All transitions (grab, claim, done, release) go through one monitor.
+ * Each of them touches the free set, the running ranges and the owners
+ * of a range at once, and only holds the lock for a few map operations.
+ * A token takes seconds to render, so the lock is hardly ever contended
+ * and striping it wouldn't buy anything.
+ *
+ * Bunches have an estimated cost (see CostMap), a client asks for as
+ * many contiguous bunches as it can render in a given time. So cheap
+ * parts of the image are handed out in larger ranges than expensive ones.
+ *
+ * Once there are no free bunches left, idle clients get a copy of the
+ * oldest range which is still being rendered elsewhere. Whoever
+ * finishes a range first wins, the other copy is canceled. This way,
+ * one slow node can't hold up the end of a render. Ranges of clients
+ * which can't be canceled (local ones, they render in place) aren't
+ * copied.
+ */
+public class BunchScheduler
+{
+	/**
+	 * A range of bunches handed out to one or two clients.
+	 */
+	public static class Range
+	{
+		public final int start, end;
+		public final double cost;
+
+		private final int first;
+		private ArrayList<Integer> owners = new ArrayList<Integer>();
+		private ArrayList<Closeable> cancels = new ArrayList<Closeable>();
+		private boolean won = false;
+		private boolean done = false;
+
+		private Range(int start, int end, double cost, int first)
+		{
+			this.start = start;
+			this.end   = end;
+			this.cost  = cost;
+			this.first = first;
+		}
+
+		/**
+		 * Whether this is a copy of a range started by someone else.
+		 */
+		public boolean isCopy(int owner)
+		{
+			return owner != first;
+		}
+	}
+
+	private AtomicIntegerArray state = null;
+	private double[] costs = null;
+	private TreeMap<Integer, Integer> free = new TreeMap<Integer, Integer>();
+	private LinkedHashMap<Integer, Range> running =
+		new LinkedHashMap<Integer, Range>();
+	private NetBarDriver bar = null;
+
+	private AtomicBoolean publishing = new AtomicBoolean(false);
+	private AtomicBoolean pending = new AtomicBoolean(false);
+
+	/**
+	 * Take over the given initial states (bunches may already be done
+	 * from an earlier run) and the estimated cost of each bunch. "bar"
+	 * may be null.
+	 */
+	public BunchScheduler(int[] initial, double[] costs, NetBarDriver bar)
+	{
+		this.bar = bar;
+		this.costs = costs;
+
+		state = new AtomicIntegerArray(initial);
+
+		int i = 0;
+		while (i < initial.length)
+		{
+			if (initial[i] != NetClient.CONST_FREE)
+			{
+				i++;
+				continue;
+			}
+
+			int start = i;
+			while (i < initial.length && initial[i] == NetClient.CONST_FREE)
+				i++;
+			free.put(start, i);
+		}
+	}
+
+	/**
+	 * Number of bunches.
+	 */
+	public int size()
+	{
+		return state.length();
+	}
+
+	/**
+	 * Mark contiguous bunches as WIP for "owner", as many as fit into
+	 * "budget" but at least one and at most "max". If there
+	 * are no free bunches and "speculate" is set, a copy of the oldest
+	 * range of another client is returned instead. "cancel" is closed
+	 * if another copy of the range wins. If it's null, the ranges of
+	 * this owner are never copied. Returns null if nothing is left.
+	 */
+	public Range grab(int owner, double budget, int max, boolean speculate,
+			Closeable cancel)
+	{
+		Range r = null;
+		boolean changed = false;
+
+		synchronized (free)
+		{
+			Map.Entry<Integer, Integer> e = free.pollFirstEntry();
+			if (e != null)
+			{
+				int start = e.getKey();
+				int end   = e.getValue();
+				int take  = start + 1;
+				double cost = costs[start];
+
+				while (take < end && take - start < max
+						&& cost + costs[take] <= budget)
+					cost += costs[take++];
+
+				if (take < end)
+					free.put(take, end);
+
+				for (int i = start; i < take; i++)
+					state.set(i, owner);
+
+				r = new Range(start, take, cost, owner);
+				running.put(start, r);
+				changed = true;
+			}
+			else if (speculate)
+			{
+				// Oldest first: It's most likely the one holding up
+				// the render.
+				for (Range cand : running.values())
+				{
+					if (cand.owners.size() == 1 && !cand.won
+							&& cand.owners.get(0) != owner
+							&& cand.cancels.get(0) != null)
+					{
+						r = cand;
+						break;
+					}
+				}
+			}
+
+			if (r != null)
+			{
+				r.owners.add(owner);
+				r.cancels.add(cancel);
+			}
+		}
+
+		if (changed)
+			publish();
+
+		return r;
+	}
+
+	/**
+	 * Claim the result of a range. Returns false if another copy has
+	 * already been claimed, in which case the result must be dropped.
+	 * All other copies are canceled.
+	 */
+	public boolean claim(Range r, int owner)
+	{
+		ArrayList<Closeable> losers = new ArrayList<Closeable>();
+
+		synchronized (free)
+		{
+			if (r.won)
+				return false;
+
+			r.won = true;
+
+			for (int i = 0; i < r.owners.size(); i++)
+				if (r.owners.get(i) != owner)
+					losers.add(r.cancels.get(i));
+		}
+
+		for (Closeable c : losers)
+		{
+			try
+			{
+				if (c != null)
+					c.close();
+			}
+			catch (IOException ignore) {}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Mark a claimed range as finished.
+	 */
+	public void done(Range r)
+	{
+		synchronized (free)
+		{
+			r.done = true;
+			running.remove(r.start);
+		}
+
+		for (int i = r.start; i < r.end; i++)
+			state.set(i, NetClient.CONST_DONE);
+
+		publish();
+	}
+
+	/**
+	 * A client gives up its copy of a range (it failed, was canceled or
+	 * lost). If no other copy is left and the range isn't done, its
+	 * bunches become free again, so others can pick them up.
+	 */
+	public void release(Range r, int owner)
+	{
+		synchronized (free)
+		{
+			int at = r.owners.indexOf(owner);
+			if (at == -1)
+				return;
+
+			r.owners.remove(at);
+			r.cancels.remove(at);
+
+			if (r.done || !r.owners.isEmpty())
+				return;
+
+			running.remove(r.start);
+
+			int start = r.start;
+			int end   = r.end;
+
+			for (int i = start; i < end; i++)
+				state.set(i, NetClient.CONST_FREE);
+
+			// Merge with adjacent free ranges.
+			Map.Entry<Integer, Integer> lower = free.floorEntry(start);
+			if (lower != null && lower.getValue() >= start)
+			{
+				start = lower.getKey();
+				end = Math.max(end, lower.getValue());
+				free.remove(start);
+			}
+
+			Integer upper = free.get(end);
+			if (upper != null)
+			{
+				free.remove(end);
+				end = upper;
+			}
+
+			free.put(start, end);
+		}
+
+		publish();
+	}
+
+	/**
+	 * Number of bunches which aren't finished.
+	 */
+	public int countLeft()
+	{
+		int left = 0;
+		for (int i = 0; i < state.length(); i++)
+			if (state.get(i) != NetClient.CONST_DONE)
+				left++;
+		return left;
+	}
+
+	/**
+	 * A copy of the current states.
+	 */
+	public int[] snapshot()
+	{
+		int[] out = new int[state.length()];
+		for (int i = 0; i < out.length; i++)
+			out[i] = state.get(i);
+		return out;
+	}
+
+	/**
+	 * Tell the bar about the new states. If another thread is doing this
+	 * right now, it will do it once more for us afterwards.
+	 */
+	private void publish()
+	{
+		if (bar == null)
+			return;
+
+		pending.set(true);
+		while (pending.get() && publishing.compareAndSet(false, true))
+		{
+			try
+			{
+				pending.set(false);
+				bar.update(snapshot());
+			}
+			finally
+			{
+				publishing.set(false);
+			}
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/*
+	Copyright 2009 Peter Hofmann
+
+	This file is part of Multifrac.
+
+	Multifrac is free software: you can redistribute it and/or modify it
+	under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Multifrac is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Multifrac. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package multifrac.net;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Connections to render nodes which are kept open between renders. This
+ * saves connecting, asking for CPUs, features and speed and, as long as
+ * the image doesn't change, sending the parameters.
+ *
+ * Only connections to nodes with CAP_PARAMCACHE are kept, older nodes
+ * expect to be closed after each render. An idle connection is checked
+ * with a ping before it's used again and closed after MAX_IDLE ms.
+ */
+public class ConnectionPool
+{
+	public static final long MAX_IDLE = 5 * 60 * 1000;
+	public static final int MAX_PER_NODE = 16;
+
+	private static HashMap<String, ArrayDeque<NodeConnection>> idle =
+		new HashMap<String, ArrayDeque<NodeConnection>>();
+
+	/**
+	 * An idle connection to the given node or a new one.
+	 */
+	public static NodeConnection take(String host, int port)
+		throws IOException
+	{
+		NodeConnection c;
+		while ((c = poll(host, port)) != null)
+		{
+			if (c.isAlive())
+				return c;
+			c.close();
+		}
+
+		return NodeConnection.connect(host, port);
+	}
+
+	/**
+	 * Hand back a connection which has no jobs left. It's closed if it
+	 * can't be kept.
+	 */
+	public static void give(NodeConnection c)
+	{
+		if (!c.isPersistent())
+		{
+			c.quit();
+			return;
+		}
+
+		// The node mustn't keep writing to the image of this render.
+		try
+		{
+			c.setOutput(null);
+		}
+		catch (IOException e)
+		{
+			c.close();
+			return;
+		}
+
+		ArrayList<NodeConnection> expired = new ArrayList<NodeConnection>();
+		synchronized (idle)
+		{
+			expire(expired);
+
+			ArrayDeque<NodeConnection> q = idle.get(c.toString());
+			if (q == null)
+			{
+				q = new ArrayDeque<NodeConnection>();
+				idle.put(c.toString(), q);
+			}
+
+			if (q.size() < MAX_PER_NODE)
+			{
+				c.idleSince = System.currentTimeMillis();
+				q.addLast(c);
+				c = null;
+			}
+		}
+
+		if (c != null)
+			expired.add(c);
+		for (NodeConnection e : expired)
+			e.quit();
+	}
+
+	/**
+	 * Close all idle connections.
+	 */
+	public static void clear()
+	{
+		ArrayList<NodeConnection> all = new ArrayList<NodeConnection>();
+		synchronized (idle)
+		{
+			for (ArrayDeque<NodeConnection> q : idle.values())
+				all.addAll(q);
+			idle.clear();
+		}
+
+		for (NodeConnection c : all)
+			c.quit();
+	}
+
+	/**
+	 * Internal use: Remove the most recently used idle connection to the
+	 * given node, null if there's none.
+	 */
+	private static NodeConnection poll(String host, int port)
+	{
+		ArrayList<NodeConnection> expired = new ArrayList<NodeConnection>();
+		NodeConnection c = null;
+		synchronized (idle)
+		{
+			expire(expired);
+
+			ArrayDeque<NodeConnection> q = idle.get(host + ":" + port);
+			if (q != null)
+				c = q.pollLast();
+		}
+
+		for (NodeConnection e : expired)
+			e.quit();
+
+		return c;
+	}
+
+	/**
+	 * Internal use: Move connections which have been idle for too long
+	 * to "out". Call with the lock held.
+	 */
+	private static void expire(ArrayList<NodeConnection> out)
+	{
+		long now = System.currentTimeMillis();
+		Iterator<ArrayDeque<NodeConnection>> it = idle.values().iterator();
+		while (it.hasNext())
+		{
+			ArrayDeque<NodeConnection> q = it.next();
+			while (!q.isEmpty() && now - q.peekFirst().idleSince > MAX_IDLE)
+				out.add(q.pollFirst());
+
+			if (q.isEmpty())
+				it.remove();
+		}
+	}
+}
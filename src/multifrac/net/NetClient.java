@@ -28,14 +28,28 @@ import java.awt.*;
 import java.awt.image.*;
 import java.io.*;
 
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 public class NetClient
 {
-	protected static final int szBunch = 10;
-	protected static final int bunchMin = 1;
+	// A bunch is 16 rows high. This must be a multiple of every
+	// supersampling factor (up to 8), so that a reduced token always
+	// covers whole groups of rows.
+	protected static final int szBunch = 16;
 	protected static final int bunchMax = 20;
+
+	// Each token should take about this long (ms). The throughput of a
+	// node (estimated cost per ms, see CostMap) is smoothed using this
+	// weight for the newest measurement.
+	protected static final double tokenTime = 5000.0;
+	protected static final double rateWeight = 0.3;
 	protected static       int lastID  = 10;
+
+	// A node which sends heartbeats is given up if it stays silent for
+	// this many ms. Old nodes are waited for as long as it takes.
+	public static final int nodeTimeout = 10000;
 	public static final int CONST_FREE = 0;
 	public static final int CONST_DONE = 1;
 
@@ -45,60 +59,197 @@ public class NetClient
 
 	protected static boolean isCanceled = false;
 
+	/**
+	 * A token which has been sent to a node but not yet received.
+	 */
+	protected static class Token
+	{
+		public BunchScheduler.Range range;
+		public int bstart, bend;
+		public int start, end;
+		public long sent;
+	}
+
 	/**
 	 * Spawns a new client in the background which tries to use the
 	 * given remote host as a rendering node. It will pick a job and
 	 * render it. The result will be written to job's pixel buffer.
+	 *
+	 * Up to "window" tokens are sent in advance, so the node can start
+	 * the next one while the last one is on its way back.
+	 *
+	 * The client runs on a thread of the given pool. It uses "given" if
+	 * that isn't null, a pooled connection or a new one otherwise. Once
+	 * done, the connection is handed back to the ConnectionPool.
+	 *
+	 * Tokens are sized by the estimated cost of their bunches. If the
+	 * node reports its speed, the first token already has the right size.
+	 *
+	 * If "shared" is given and the node can write to it, it writes the
+	 * rows itself and only tells us when it's done.
+	 *
+	 * "initpx" (or the stream) is smaller than the rendered image by
+	 * "reduce" in each direction. Tokens are downscaled by the node if it
+	 * can do it, otherwise here.
 	 */
 	public static void dispatchClient(
+			final WorkerPool pool,
 			final int ID,
 			final String host,
 			final int port,
+			final NodeConnection given,
 			final FractalRenderer.Job job,
-			final int[] coordinator,
+			final BunchScheduler sched,
 			final LinkedBlockingQueue<Integer> messenger,
 			final NetConsole con,
-			final NetBarDriver bar,
 			final int[] initpx,
-			final TIFFWriter tiffStream)
+			final StreamTarget stream,
+			final Checkpoint checkpoint,
+			final SharedOutput shared,
+			final int wantCaps,
+			final int wantValues,
+			final int reduce,
+			final int window)
 	{
-		Thread t = new Thread()
+		pool.execute(new Runnable()
 		{
 			@Override
 			public void run()
 			{
-				int i      = 0;
-				int bstart = -1;
-				int bend   = -1;
-				int bunch  = 1;
+				double budget = 0.0;
 				int[] px   = null;
-				boolean bufferPresent = false;
 				boolean aborted = false;
-				Socket s = null;
+				NodeConnection conn = given;
+				PixelIO io = null;
+				PixelCodec codec = null;
+				ArrayDeque<Token> inflight = new ArrayDeque<Token>();
+				final AtomicBoolean lost = new AtomicBoolean(false);
+				final AtomicBoolean beaten = new AtomicBoolean(false);
 
 				try
 				{
 					// Connect
-					msg(con, ID,
-							"Connecting to " + host + ":" + port + "...");
-					DataInputStream bin = null;
-					DataOutputStream dout = null;
-					s = new Socket(host, port);
-					bin  = new DataInputStream(
-							new BufferedInputStream(s.getInputStream()));
-					dout = new DataOutputStream(s.getOutputStream());
+					if (conn == null)
+					{
+						msg(con, ID, "Connecting to " + host + ":" + port
+								+ "...");
+						conn = ConnectionPool.take(host, port);
+					}
+					io = conn.io;
+					DataOutputStream dout = io.out;
 
 					msg(con, ID, "Connected!");
 
-					// Send parameters and size
-					dout.writeInt(Node.CMD_PARAM);
-					job.param.writeToStream(dout);
-					dout.writeInt(job.getWidth());
-					dout.writeInt(job.getHeight());
+					// Agree on optional features. Any node answers this
+					// right away.
+					io.setTimeout(PixelIO.CONNECT_TIMEOUT);
+					int caps = conn.negotiate(wantCaps);
+					if ((caps & Node.CAP_COMPRESS) != 0)
+					{
+						msg(con, ID, "Node supports compression.");
+						codec = new PixelCodec();
+					}
+
+					// Jobs can take a while. Only if the node tells us
+					// it's still alive, we can give up on it early.
+					boolean heartbeat = ((caps & Node.CAP_HEARTBEAT) != 0);
+					if (heartbeat)
+					{
+						msg(con, ID, "Node sends heartbeats.");
+						io.setTimeout(nodeTimeout);
+					}
+					else
+						io.setTimeout(0);
+
+					// Such nodes can also drop their jobs on an abort.
+					// Others finish the current one first.
+					final boolean canAbort = heartbeat
+						&& ((caps & Node.CAP_ABORT) != 0);
+
+					// If another client finishes one of our tokens first,
+					// it cancels us. Nodes which can abort are told to
+					// drop our tokens, so the connection can be kept.
+					// Others are stopped by closing the connection. Once
+					// we're done, it isn't ours to close anymore.
+					final PixelIO sock = io;
+					Closeable cancel = new Closeable()
+					{
+						@Override
+						public void close() throws IOException
+						{
+							if (canAbort)
+								beaten.set(true);
+							else if (lost.compareAndSet(false, true))
+								sock.close();
+						}
+					};
+
+					// Let the node downscale the tokens. This only works
+					// for colors.
+					boolean nodeReduce = false;
+					if ((caps & Node.CAP_REDUCE) != 0)
+					{
+						nodeReduce = (reduce > 1);
+						dout.writeInt(Node.CMD_REDUCE);
+						dout.writeInt(nodeReduce ? reduce : 1);
+						if (nodeReduce)
+							msg(con, ID, "Node reduces by " + reduce + ".");
+					}
+
+					// Nodes which see the image write their rows into
+					// it, we only keep track of them. Without
+					// heartbeats, we couldn't tell their replies apart.
+					boolean direct = false;
+					if (shared != null && heartbeat
+							&& (caps & Node.CAP_SHAREDFILE) != 0
+							&& (reduce == 1 || nodeReduce))
+					{
+						direct = conn.setOutput(shared);
+						msg(con, ID, (direct
+									? "Node writes to " + shared + "."
+									: "Node can't write to " + shared + "."));
+					}
+					else
+						conn.setOutput(null);
+
+					// Values are only sent by nodes which support them.
+					// Others send colors, which is fine unless raw values
+					// are to be saved.
+					int values = Node.VALUES_COLORS;
+					if ((caps & Node.CAP_VALUES) != 0)
+					{
+						if (!direct && !nodeReduce)
+							values = wantValues;
+						dout.writeInt(Node.CMD_VALUES);
+						dout.writeInt(values);
+					}
+					else if (job.raw)
+						throw new IOException(
+								"Node can't send raw values.");
+
+					// Send parameters and size (or only what's needed to
+					// make the node use them).
+					msg(con, ID, conn.sendParams(paramBlock(job)));
+
+					// Cost per ms this node is expected to render. If it
+					// knows its speed, start with the right size.
+					double rate = 0.0;
+					if ((caps & Node.CAP_SPEED) != 0)
+					{
+						int cpus  = conn.getCPUs();
+						int speed = conn.getSpeed();
+
+						rate = (double)speed * cpus;
+						budget = tokenTime * rate;
+						msg(con, ID, "Node speed: " + speed + " x " + cpus
+								+ " iterations per ms. First token cost: "
+								+ budget);
+					}
 
 					// Do the tokens
-					int start, end, max;
-					max = job.getHeight();
+					int max = job.getHeight();
+					int remoteBunch = -1;
+					long lastDone = System.currentTimeMillis();
 
 					while (true)
 					{
@@ -115,164 +266,209 @@ public class NetClient
 						// Hence, we can't use a simple coordinator
 						// like in the local multithreaded process.
 						//
-						// The image is split up into "bunches". Every
-						// bunch has 3 states:
-						//
-						//  - unrendered/CONST_FREE: 0
-						//  - finished/CONST_DONE: 1
-						//  - WIP: ID of the local thread
-						//
-						// If a thread grabs a bunch, it marks it as
-						// being "WIP" with its ID. Once a bunch is
-						// completed, it's marked as "finished". If a
-						// thread *fails*, the bunch will be marked
-						// again as "unrendered".
-						synchronized (coordinator)
+						// The image is split up into "bunches" which
+						// are handed out by the scheduler. If a thread
+						// *fails*, its bunches are returned to it.
+						while (inflight.size() < window)
 						{
-							// Grab as many contiguous bunches as
-							// possible. If you hit a boundary (end of
-							// the image or bunches that are WIP on
-							// other threads), then stop grabbing. If
-							// there are no more bunches left, quit the
-							// thread.
-
-							// If this is not the first run, mark the
-							// bunches of the last run as "finished".
-							if (bstart != -1)
+							// Grab as many contiguous bunches as the
+							// budget allows. When there are none left and
+							// we're idle, help out with the oldest
+							// token of another client. If there's
+							// nothing at all, stop sending tokens.
+							BunchScheduler.Range range = sched.grab(ID,
+									budget, bunchMax, inflight.isEmpty(),
+									cancel);
+							if (range == null)
+								break;
+
+							Token tok = new Token();
+							tok.range  = range;
+							tok.bstart = range.start;
+							tok.bend   = range.end;
+
+							if (range.isCopy(ID))
+								msg(con, ID, "Speculating on bunches "
+										+ tok.bstart + " -> " + tok.bend);
+
+							// Grow the remote limit if needed. It's never
+							// shrunk, smaller tokens are fine.
+							int need = tok.bend - tok.bstart;
+							if (need > remoteBunch)
 							{
-								for (i = bstart; i < bend; i++)
-								{
-									//msg(con, ID, "MARK: "  + i);
-									coordinator[i] = CONST_DONE;
-								}
+								dout.writeInt(Node.CMD_ROWS);
+								dout.writeInt(szBunch * need);
+								remoteBunch = need;
 							}
 
-							if (bar != null)
-								bar.update(coordinator);
+							// Calc real rows.
+							msg(con, ID, "Bunch " + tok.bstart + " -> "
+									+ tok.bend);
+							tok.start = tok.bstart * szBunch;
+							tok.end   = Math.min(tok.bend * szBunch, max);
+
+							// Now render this particular token.
+							msg(con, ID, "Rows " + tok.start + " -> "
+									+ tok.end);
+							dout.writeInt(Node.CMD_JOB);
+							dout.writeInt(tok.start);
+							dout.writeInt(tok.end);
+							tok.sent = System.currentTimeMillis();
+
+							inflight.addLast(tok);
+						}
 
-							// Find first free bunch.
-							for (i = 0;
-									i < coordinator.length
-									&& coordinator[i] != CONST_FREE; i++);
-							bstart = i;
+						// Nothing sent and nothing to receive? Then we're
+						// done.
+						if (inflight.isEmpty())
+							break;
 
-							// Start beyond image boundary? Then we're
-							// done.
-							if (bstart >= coordinator.length)
-								break;
+						// Tokens come back in the order they were sent.
+						Token tok = inflight.peekFirst();
+						int num = (tok.end - tok.start) * job.getWidth();
 
-							// Find last free bunch and mark those in
-							// between.
-							while (i < coordinator.length
-									&& (i - bstart) < bunch
-									&& coordinator[i] == CONST_FREE)
+						msg(con, ID, "Receiving...");
+						int bytes = Node.valueBytes(values);
+						if (heartbeat)
+						{
+							// Each heartbeat is a chance to notice an
+							// abort (or that we've lost a race) while the
+							// node is still busy.
+							int reply;
+							while ((reply = io.in.readInt())
+									== Node.REPLY_HEARTBEAT
+									&& !(canAbort
+										&& (getCanceled() || beaten.get())));
+
+							if (reply == Node.REPLY_HEARTBEAT)
 							{
-								coordinator[i] = ID;
-								i++;
+								boolean lostRace = !getCanceled();
+								beaten.set(false);
+
+								msg(con, ID, (lostRace
+											? "Token done elsewhere. "
+											: "")
+										+ "Aborting remote jobs...");
+								abortTokens(io, codec, inflight,
+										job.getWidth(), (direct ? 0 : bytes),
+										(nodeReduce ? reduce : 1));
+
+								// Nothing is left on the node, so the
+								// connection can be used again. Our other
+								// tokens are free again, maybe we'll get
+								// them back.
+								for (Token t : inflight)
+									sched.release(t.range, ID);
+								inflight.clear();
+
+								if (lostRace)
+									continue;
+
+								aborted = true;
+								break;
 							}
-							bend = i;
 
-							if (bar != null)
-								bar.update(coordinator);
+							if (reply != Node.REPLY_JOB)
+								throw new IOException("Invalid reply: "
+										+ reply);
 						}
 
-						// Allocate buffers if needed
-						if (!bufferPresent)
+						// Receive to local buffer. Another client may
+						// be working on the same token, so only the
+						// winner may touch the image.
+						if (!direct)
 						{
-							// Remote buffer
-							dout.writeInt(Node.CMD_ROWS);
-							dout.writeInt(szBunch * bunch);
-
-							// Local buffer
-							if (tiffStream == null)
-								px = initpx;
-							else
+							if (px == null || px.length < num)
 							{
-								px = new int[szBunch * bunch
-									* job.param.getWidth()];
-
+								px = new int[num];
 								msg(con, ID, "Local buffer length: "
 										+ px.length);
 							}
 
-							bufferPresent = true;
-						}
+							int got = (nodeReduce ? num / (reduce * reduce)
+									: num);
+							receive(io, codec, px, 0, got, bytes);
 
-						// Calc real rows.
-						msg(con, ID, "Bunch " + bstart + " -> " + bend);
-						start = bstart * szBunch;
-						end   = bend   * szBunch;
+							if (values != Node.VALUES_COLORS)
+								decodeValues(px, 0, got, values,
+										(job.raw ? null : job.param));
+						}
 
-						if (end >= max)
-							end = max;
+						// The node started this token when it was sent
+						// or when it finished the previous one.
+						long now = System.currentTimeMillis();
+						long diffTime = now - Math.max(tok.sent, lastDone);
+						lastDone = now;
+						msg(con, ID, "Receiving done. Token time: "
+								+ diffTime);
 
-						// Now render this particular token.
-						msg(con, ID, "Rows " + start + " -> " + end);
-						dout.writeInt(Node.CMD_JOB);
-						dout.writeInt(start);
-						dout.writeInt(end);
+						// The token stays in flight until it's done, so
+						// it's released if writing it fails.
+						if (!sched.claim(tok.range, ID))
+						{
+							msg(con, ID, "Bunches " + tok.bstart + " -> "
+									+ tok.bend + " were done elsewhere.");
+							inflight.removeFirst();
+							sched.release(tok.range, ID);
+							continue;
+						}
 
-						long startTime = System.currentTimeMillis();
-						msg(con, ID, "Rendering...");
+						// Rows of the final image. Tokens always consist
+						// of whole blocks of "reduce" rows.
+						int row  = tok.start / reduce;
+						int rows = (tok.end - tok.start) / reduce;
 
-						// Receive to local buffer
-						int at;
-						if (tiffStream == null)
-							at = start * job.getWidth();
-						else
-							at = 0;
+						int[] res = px;
+						if (!direct && !nodeReduce)
+							res = ImageOperations.resize2(px,
+									job.getWidth(), tok.end - tok.start,
+									reduce);
 
-						boolean first = true;
-						for (int y = start; y < end; y++)
+						// Do streaming if desired. A node writing to the
+						// image has already done it.
+						if (direct)
 						{
-							for (int x = 0; x < job.getWidth(); x++)
-							{
-								px[at++] = bin.readInt();
-								if (first)
-								{
-									first = false;
-									msg(con, ID, "Receiving...");
-								}
-							}
+							if (checkpoint != null)
+								checkpoint.markDone(row, rows);
 						}
-						long endTime = System.currentTimeMillis();
-						long diffTime = endTime - startTime;
-						msg(con, ID, "Receiving done. Token time: "
-								+ diffTime);
-
-						// Do streaming if desired.
-						if (tiffStream != null)
+						else if (stream == null)
 						{
-							synchronized (tiffStream)
+							System.arraycopy(res, 0, initpx,
+									row * (job.getWidth() / reduce),
+									num / (reduce * reduce));
+						}
+						else
+						{
+							synchronized (stream)
 							{
-								msg(con, ID, "Streaming TIFF data...");
-								tiffStream.seekRow(start);
-								tiffStream.writeRGBData(px,
-										(end - start) * job.getWidth());
+								msg(con, ID, "Streaming data...");
+								stream.writeRows(res, 0, row, rows);
+								stream.flush();
 								msg(con, ID, "Done.");
 							}
-						}
-
-						// Try to adjust the bunch size so that it
-						// takes about 5 seconds:
-						//     bunch / diff = nbunch / 5000
-						int nbunch;
-						nbunch = (int)((5000.0 * bunch) / (double)diffTime);
 
-						// Clip
-						if (nbunch < bunchMin)
-							nbunch = bunchMin;
-						else if (nbunch > bunchMax)
-							nbunch = bunchMax;
+							if (checkpoint != null)
+								checkpoint.markDone(row, rows);
+						}
 
-						if (bunch != nbunch)
-						{
-							bunch = nbunch;
-							msg(con, ID, "New bunch size: " + bunch);
+						// Mark the bunches of this token as "finished".
+						sched.done(tok.range);
+						inflight.removeFirst();
+
+						// Try to adjust the token cost so that it
+						// takes about 5 seconds. A single slow or fast
+						// token doesn't change much, the rate is a
+						// moving average.
+						double measured = tok.range.cost
+							/ Math.max(diffTime, 1);
+						if (rate == 0.0)
+							rate = measured;
+						else
+							rate = (1.0 - rateWeight) * rate
+								+ rateWeight * measured;
 
-							// Mark buffers as deleted
-							bufferPresent = false;
-						}
+						budget = tokenTime * rate;
+						msg(con, ID, "New token cost: " + budget);
 					}
 
 					// Send message depending on state
@@ -287,54 +483,202 @@ public class NetClient
 						messenger.offer(new Integer(CONST_ABORTED));
 					}
 
-					// The famous last words.
-					dout.writeInt(Node.CMD_CLOSE);
+					// The famous last words. Unless there are jobs left,
+					// the next render may use this connection again.
+					if (!inflight.isEmpty())
+					{
+						dout.writeInt(Node.CMD_CLOSE);
+						dout.flush();
+					}
+					else if (lost.compareAndSet(false, true))
+					{
+						ConnectionPool.give(conn);
+						conn = null;
+					}
 				}
 				catch (Exception e)
 				{
+					// Reset WIP-bunches
+					for (Token tok : inflight)
+						sched.release(tok.range, ID);
+
+					if (lost.get())
+					{
+						// Another client was faster and canceled us.
+						// That's not an error.
+						msg(con, ID, "Token done elsewhere. Quitting.");
+						messenger.offer(Integer.valueOf(CONST_SUCCESS));
+						return;
+					}
+
 					msg(con, ID, "Unexpected error! Thread quitting: "
 							+ e.getClass().getSimpleName() + ", "
 							+ "\"" + e.getMessage() + "\"");
 
 					e.printStackTrace();
 
-					synchronized (coordinator)
-					{
-						// Reset WIP-bunches
-						if (bstart != -1)
-						{
-							for (i = bstart; i < bend; i++)
-							{
-								//msg(con, ID, "RESET: " + i);
-								coordinator[i] = CONST_FREE;
-							}
-
-							if (bar != null)
-								bar.update(coordinator);
-						}
-					}
-
 					// Send failure message
 					// TODO: More critical errors get higher numbers
 					messenger.offer(new Integer(CONST_ERROR));
 				}
 				finally
 				{
-					try
+					if (codec != null)
+						codec.end();
+
+					if (conn != null)
+						conn.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Render bunches on this machine, there's no node and no socket in
+	 * between. Own bunches are rendered right into "initpx" (or into a
+	 * buffer for the stream or if they have to be downscaled by
+	 * "reduce"). Near the end, copies of other clients' tokens are
+	 * rendered just like remote clients do it.
+	 *
+	 * Each local client is one render thread.
+	 */
+	public static void dispatchLocal(
+			final WorkerPool pool,
+			final int ID,
+			final FractalRenderer.Job job,
+			final BunchScheduler sched,
+			final LinkedBlockingQueue<Integer> messenger,
+			final NetConsole con,
+			final int[] initpx,
+			final StreamTarget stream,
+			final Checkpoint checkpoint,
+			final int reduce)
+	{
+		pool.executeBusy(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				FractalRenderer rend = new FractalRenderer(job, null);
+				int w = job.getWidth();
+				int max = job.getHeight();
+				int[] px = null;
+				boolean aborted = false;
+				BunchScheduler.Range range = null;
+
+				try
+				{
+					while (true)
 					{
-						if (s != null)
+						if (getCanceled())
+						{
+							aborted = true;
+							break;
+						}
+
+						// One bunch at a time, there's no latency to
+						// hide. No cancel: Nobody else renders our
+						// bunches, so they can be written in place.
+						range = sched.grab(ID, 0.0, 1, true, null);
+						if (range == null)
+							break;
+
+						int start = range.start * szBunch;
+						int end   = Math.min(range.end * szBunch, max);
+						int num   = (end - start) * w;
+
+						// A copy has to wait for the claim.
+						int[] buf = initpx;
+						int at = start * w;
+						if (stream != null || range.isCopy(ID) || reduce > 1)
+						{
+							if (range.isCopy(ID))
+								msg(con, ID, "Speculating on bunches "
+										+ range.start + " -> " + range.end);
+
+							if (px == null || px.length < num)
+								px = new int[num];
+							buf = px;
+							at = 0;
+						}
+
+						// Row by row, so an abort doesn't take long.
+						for (int y = start; y < end && !getCanceled(); y++)
+							rend.renderPass(y, y + 1, buf, at + (y - start) * w);
+
+						if (getCanceled())
+						{
+							aborted = true;
+							break;
+						}
+
+						if (!sched.claim(range, ID))
+						{
+							msg(con, ID, "Bunches " + range.start + " -> "
+									+ range.end + " were done elsewhere.");
+							sched.release(range, ID);
+							range = null;
+							continue;
+						}
+
+						// "range" is kept until it's done, so it's released
+						// if writing it fails.
+
+						if (buf == px)
 						{
-							s.shutdownOutput();
-							s.shutdownInput();
-							s.close();
-							s = null;
+							int[] res = ImageOperations.resize2(px, w,
+									end - start, reduce);
+							int row  = start / reduce;
+							int rows = (end - start) / reduce;
+
+							if (stream == null)
+								System.arraycopy(res, 0, initpx,
+										row * (w / reduce), rows * (w / reduce));
+							else
+							{
+								synchronized (stream)
+								{
+									stream.writeRows(res, 0, row, rows);
+									stream.flush();
+								}
+
+								if (checkpoint != null)
+									checkpoint.markDone(row, rows);
+							}
 						}
+
+						sched.done(range);
+						range = null;
+					}
+
+					if (range != null)
+						sched.release(range, ID);
+
+					if (!aborted)
+					{
+						msg(con, ID, "No more bunches left. Quitting.");
+						messenger.offer(Integer.valueOf(CONST_SUCCESS));
+					}
+					else
+					{
+						msg(con, ID, "Aborted.");
+						messenger.offer(Integer.valueOf(CONST_ABORTED));
 					}
-					catch (IOException ignore) {}
+				}
+				catch (Exception e)
+				{
+					if (range != null)
+						sched.release(range, ID);
+
+					msg(con, ID, "Unexpected error! Thread quitting: "
+							+ e.getClass().getSimpleName() + ", "
+							+ "\"" + e.getMessage() + "\"");
+
+					e.printStackTrace();
+					messenger.offer(Integer.valueOf(CONST_ERROR));
 				}
 			}
-		};
-		t.start();
+		});
 	}
 
 	synchronized public static void setCanceled(boolean b)
@@ -358,6 +702,123 @@ public class NetClient
 			con.println(Node.st() + " [main] " + msg);
 	}
 
+	/**
+	 * Ask the node which optional features it supports.
+	 *
+	 * Old nodes ignore CMD_CAPS without replying. Hence, a ping is sent
+	 * right after it: If its reply comes first, there are no features.
+	 */
+	protected static int queryCaps(PixelIO io) throws IOException
+	{
+		int challenge = (int)(Math.random() * Integer.MAX_VALUE * 0.5);
+		io.out.writeInt(Node.CMD_CAPS);
+		io.out.writeInt(Node.CMD_PING);
+		io.out.writeInt(challenge);
+		io.out.flush();
+
+		int reply = io.in.readInt();
+		if (reply == challenge + 1)
+			return 0;
+
+		if (reply != Node.CAPS_MAGIC)
+			throw new IOException("Invalid reply to CMD_CAPS: " + reply);
+
+		int caps = io.in.readInt();
+
+		reply = io.in.readInt();
+		if (reply != challenge + 1)
+			throw new IOException("Invalid ping reply: " + reply);
+
+		return caps;
+	}
+
+	/**
+	 * The data of CMD_PARAM for the given job: Parameters and size.
+	 */
+	protected static byte[] paramBlock(FractalRenderer.Job job)
+		throws IOException
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bos);
+		job.param.writeToStream(dos);
+		dos.writeInt(job.getWidth());
+		dos.writeInt(job.getHeight());
+		dos.flush();
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Receive the pixels of one token.
+	 */
+	protected static void receive(PixelIO io, PixelCodec codec, int[] px,
+			int at, int num, int bytes) throws IOException
+	{
+		if (codec != null)
+			codec.read(io, px, at, num, bytes);
+		else if (bytes == 2)
+			io.readShorts(px, at, num);
+		else
+			io.readInts(px, at, num);
+	}
+
+	/**
+	 * Tell the node to drop the tokens in flight. Those which are already
+	 * on their way are received and thrown away. "bytes" is 0 if the
+	 * node writes to a shared file, its replies have no pixels then.
+	 * "reduce" is the factor the node downscales by.
+	 */
+	protected static void abortTokens(PixelIO io, PixelCodec codec,
+			ArrayDeque<Token> inflight, int w, int bytes, int reduce)
+		throws IOException
+	{
+		io.out.writeInt(Node.CMD_ABORT);
+		io.out.flush();
+
+		int[] scratch = null;
+		while (true)
+		{
+			int reply = io.in.readInt();
+			if (reply == Node.REPLY_ABORTED)
+				return;
+			else if (reply == Node.REPLY_HEARTBEAT)
+				continue;
+			else if (reply != Node.REPLY_JOB || inflight.isEmpty())
+				throw new IOException("Invalid reply: " + reply);
+
+			Token tok = inflight.removeFirst();
+			if (bytes == 0)
+				continue;
+
+			int num = (tok.end - tok.start) * w / (reduce * reduce);
+			if (scratch == null || scratch.length < num)
+				scratch = new int[num];
+			receive(io, codec, scratch, 0, num, bytes);
+		}
+	}
+
+	/**
+	 * Convert values received from a node in place: To colors using the
+	 * given parameters or, if "colors" is null, to floats as stored in a
+	 * raw Job.
+	 */
+	protected static void decodeValues(int[] px, int off, int num,
+			int values, FractalParameters colors)
+	{
+		for (int i = off; i < off + num; i++)
+		{
+			float v;
+			if (values == RawWriter.FORMAT_FIXED16)
+				v = RawWriter.fromFixed(px[i]);
+			else
+				v = Float.intBitsToFloat(px[i]);
+
+			if (colors == null)
+				px[i] = Float.floatToRawIntBits(v);
+			else
+				px[i] = FractalRenderer.colorize(colors, v);
+		}
+	}
+
 	/**
 	 * Use a trivial challenge-response-ping-test.
 	 */
@@ -368,7 +829,10 @@ public class NetClient
 			DataInputStream din;
 			DataOutputStream dout;
 
-			Socket s = new Socket(host, port);
+			Socket s = new Socket();
+			s.connect(new InetSocketAddress(host, port),
+					PixelIO.CONNECT_TIMEOUT);
+			s.setSoTimeout(PixelIO.CONNECT_TIMEOUT);
 
 			din  = new DataInputStream(s.getInputStream());
 			dout = new DataOutputStream(s.getOutputStream());
@@ -407,6 +871,38 @@ public class NetClient
 		return lastID;
 	}
 
+	/**
+	 * Key of the checkpoint of a streamed render. It's the same key as
+	 * that of local renders, so either one can resume the other.
+	 */
+	protected static long streamKey(NetRenderSettings nset)
+	{
+		if (nset.raw)
+			return Checkpoint.makeKey(nset.param, nset.param.getWidth(),
+					nset.param.getHeight(), nset.supersampling,
+					"RAW" + nset.values);
+
+		return Checkpoint.makeKey(nset.param, nset.param.getWidth(),
+				nset.param.getHeight(), nset.supersampling, "TIFF");
+	}
+
+	/**
+	 * Look for the checkpoint of an interrupted render with the same
+	 * settings. Returns null if there is none or if the render can't be
+	 * resumed at all.
+	 */
+	public static Checkpoint findCheckpoint(NetRenderSettings nset)
+	{
+		if (!nset.directStream)
+			return null;
+		if (!nset.raw && !TIFFWriter.isResumable(nset.tiffLayout))
+			return null;
+
+		return Checkpoint.load(nset.tfile, streamKey(nset),
+				nset.param.size.height
+				* (nset.raw ? nset.supersampling : 1));
+	}
+
 	/**
 	 * Use this method to start and keep track of a distributed rendering
 	 * process.
@@ -418,18 +914,66 @@ public class NetClient
 
 		// Create new job item
 		FractalRenderer.Job job = null;
-		TIFFWriter tiffStream = null;
+		StreamTarget stream = null;
+		Checkpoint checkpoint = null;
+		SharedOutput shared = null;
+		int[] image = null;
+		int reduce = 1;
 
 		if (nset.directStream)
 		{
 			// Streaming: All clients will share the same target stream
 			// for now, but they'll have separate int[]-buffers (see
-			// below).
+			// below). Colors are downscaled before they're streamed, raw
+			// values can't be averaged.
+			if (!nset.raw)
+				reduce = nset.supersampling;
+
 			try
 			{
-				tiffStream = new TIFFWriter(nset.tfile,
-						nset.param.size.width * nset.supersampling,
-						nset.param.size.height * nset.supersampling);
+				int sw = nset.param.size.width * nset.supersampling / reduce;
+				int sh = nset.param.size.height * nset.supersampling / reduce;
+
+				// Raw files and the classic layout can be resumed: Each
+				// row has a fixed position in the file.
+				if (nset.raw || TIFFWriter.isResumable(nset.tiffLayout))
+				{
+					if (nset.resume)
+						checkpoint = findCheckpoint(nset);
+
+					if (checkpoint != null)
+						msg(out, -1, "Resuming: " + checkpoint.countDone()
+								+ " of " + sh + " rows already done.");
+
+					if (nset.raw)
+						stream = new RawWriter(nset.tfile, nset.param,
+								sw, sh, nset.supersampling, nset.values,
+								checkpoint != null);
+					else
+						stream = new TIFFWriter(nset.tfile, sw, sh,
+								nset.tiffLayout, checkpoint != null);
+
+					if (checkpoint == null)
+						checkpoint = Checkpoint.create(nset.tfile,
+								streamKey(nset), sh);
+
+					// Nodes which share the directory of the image write
+					// their rows themselves.
+					String path = (nset.sharedRoot == null || nset.raw
+							? null
+							: SharedOutput.relativePath(nset.sharedRoot,
+								nset.tfile));
+					if (path != null)
+					{
+						long size = ((TIFFWriter)stream).allocate();
+						shared = new SharedOutput(path,
+								TIFFWriter.IMAGE_START, sw * 3, size);
+						msg(out, -1, "Shared output: " + path);
+					}
+				}
+				else
+					stream = new TIFFWriter(nset.tfile, sw, sh,
+							nset.tiffLayout);
 			}
 			catch (IOException e)
 			{
@@ -452,15 +996,22 @@ public class NetClient
 					-1,
 					null,
 					0);
+			job.raw = nset.raw;
 		}
 		else
 		{
-			// The job's buffer will be used by all clients.
+			// The image is kept at its final size, all clients write
+			// their downscaled tokens into it. The job itself has no
+			// buffer.
 			job = new FractalRenderer.Job(
 					nset.param,
 					nset.supersampling,
 					-1,
-					null);
+					null,
+					0);
+			reduce = nset.supersampling;
+			image = new int[nset.param.getWidth()
+				* nset.param.getHeight()];
 		}
 
 		// Local coordinator to maintain the bunches.
@@ -471,10 +1022,37 @@ public class NetClient
 		msg(out, -1, "Number of bunches: " + numbunch);
 		int[] coord = new int[numbunch];
 
+		// Skip bunches which have been done in an earlier run.
+		if (checkpoint != null)
+		{
+			int max = job.getHeight();
+			for (int i = 0; i < numbunch; i++)
+				if (checkpoint.isDone(i * szBunch / reduce,
+							Math.min((i + 1) * szBunch, max) / reduce))
+					coord[i] = CONST_DONE;
+		}
+
 		// Inform the bar driver about this size
 		if (bar != null)
 			bar.setSize(numbunch);
 
+		// Estimated cost of each bunch. Without planning, only the average
+		// is used to size the first tokens.
+		CostMap costs;
+		if (nset.plan)
+			costs = CostMap.preview(job.param, CostMap.PREVIEW_PIXELS);
+		else
+			costs = CostMap.preview(job.param, 1024).flatten();
+
+		msg(out, -1, "Estimated iterations per pixel: " + costs.average());
+
+		double[] bunchCosts = new double[numbunch];
+		for (int i = 0; i < numbunch; i++)
+			bunchCosts[i] = costs.cost(i * szBunch,
+					Math.min((i + 1) * szBunch, job.getHeight()));
+
+		BunchScheduler sched = new BunchScheduler(coord, bunchCosts, bar);
+
 		// Message queue
 		LinkedBlockingQueue<Integer> messenger =
 			new LinkedBlockingQueue<Integer>();
@@ -482,7 +1060,23 @@ public class NetClient
 		// Timing
 		long startTime = System.currentTimeMillis();
 
-		// Now start all clients
+		// Optional features for the clients
+		int caps = 0;
+		if (nset.compress)
+			caps |= Node.CAP_COMPRESS;
+		if (nset.values != Node.VALUES_COLORS)
+			caps |= Node.CAP_VALUES;
+		if (shared != null)
+			caps |= Node.CAP_SHAREDFILE;
+		if (reduce > 1)
+			caps |= Node.CAP_REDUCE;
+		caps |= Node.CAP_HEARTBEAT | Node.CAP_ABORT | Node.CAP_SPEED;
+
+		// Now start all clients. They live no longer than this method.
+		WorkerPool pool = new WorkerPool("NetClient");
+		msg(out, -1, "Client threads: "
+				+ (pool.isVirtual() ? "virtual" : "platform"));
+
 		int numClients = 0;
 		for (int i = 0; i < nset.hosts.length; i++)
 		{
@@ -493,35 +1087,34 @@ public class NetClient
 					+ nset.ports[i]
 					+ "...");
 
+			NodeConnection conn = null;
 			try
 			{
-				DataInputStream din;
-				DataOutputStream dout;
-
-				Socket s = new Socket(nset.hosts[i], nset.ports[i]);
-				msg(out, -1, "Connected.");
-
-				din  = new DataInputStream(s.getInputStream());
-				dout = new DataOutputStream(s.getOutputStream());
+				// A connection from an earlier render already knows
+				// all of this.
+				conn = ConnectionPool.take(nset.hosts[i], nset.ports[i]);
+				conn.io.setTimeout(PixelIO.CONNECT_TIMEOUT);
+				msg(out, -1, (conn.idleSince != 0
+							? "Reusing connection." : "Connected."));
 
 				// Query number of processors
 				msg(out, -1, "Getting number of CPUs...");
-				dout.writeInt(Node.CMD_ADCPUS);
-				int cpus = din.readInt();
+				int cpus = conn.getCPUs();
 				msg(out, -1, "Got it: " + cpus);
 
-				msg(out, -1, "Closing control connection with "
-						+ nset.hosts[i]
-						+ ":"
-						+ nset.ports[i]);
-				dout.writeInt(Node.CMD_CLOSE);
-				s.shutdownOutput();
-				s.shutdownInput();
-				s.close();
-				s = null;
-
-				// Launch clients for this host
-				for (int k = 0; k < cpus; k++)
+				// Nodes which render each job on all of their CPUs need
+				// only one connection. Old nodes need one per CPU.
+				int connections = cpus;
+				if ((conn.getSupported() & Node.CAP_PARALLEL) != 0)
+				{
+					msg(out, -1, "Node renders in parallel, "
+							+ "using one connection.");
+					connections = 1;
+				}
+
+				// Launch clients for this host. The first one takes over
+				// this connection.
+				for (int k = 0; k < connections; k++)
 				{
 					msg(out, -1, "Launch client number " + (k + 1)
 							+ " for "
@@ -531,31 +1124,65 @@ public class NetClient
 							+ "...");
 
 					dispatchClient(
+							pool,
 							createID(),
 							nset.hosts[i],
 							nset.ports[i],
+							(k == 0 ? conn : null),
 							job,
-							coord,
+							sched,
 							messenger,
 							out,
-							bar,
-							job.getPixels(),
-							tiffStream);
-
+							image,
+							stream,
+							checkpoint,
+							shared,
+							caps,
+							nset.values,
+							reduce,
+							Math.max(1, nset.window));
+
+					conn = null;
 					numClients++;
 				}
 			}
 			catch (Exception e)
 			{
+				if (conn != null)
+					conn.close();
+
 				msg(out, -1, "Could not spawn the last client: "
 						+ e.getClass().getSimpleName() + ", "
 						+ "\"" + e.getMessage() + "\"");
 			}
 		}
 
+		// This machine helps out as well.
+		if (nset.local)
+		{
+			msg(out, -1, "Local threads: " + Multifrac.numthreads);
+			for (int i = 0; i < Multifrac.numthreads; i++)
+			{
+				dispatchLocal(
+						pool,
+						createID(),
+						job,
+						sched,
+						messenger,
+						out,
+						image,
+						stream,
+						checkpoint,
+						reduce);
+
+				numClients++;
+			}
+		}
+
 		if (numClients == 0)
 		{
 			msg(out, -1, "No clients were started!");
+			awaitClients(pool, out);
 
 			// Callback
 			if (callback != null)
@@ -569,6 +1196,7 @@ public class NetClient
 		}
 
 		// Wait for them to finish
+		boolean aborted = false;
 		try
 		{
 			while (numClients > 0)
@@ -578,22 +1206,8 @@ public class NetClient
 
 				if (result == CONST_ABORTED)
 				{
-					msg(out, -1, "Aborted!");
-
-					if (nset.directStream)
-					{
-						msg(out, -1, "Closing TIFF stream.");
-						msg(out, -1, "It's okay if you see "
-								+ "\"ClosedChannelExceptions\" in the "
-								+ "next few lines.");
-						tiffStream.close();
-					}
-
-					// Callback
-					if (callback != null)
-						SwingUtilities.invokeLater(callback);
-
-					return;
+					aborted = true;
+					break;
 				}
 				else if (result != CONST_SUCCESS)
 				{
@@ -630,10 +1244,63 @@ public class NetClient
 
 			return;
 		}
-		catch (IOException e)
+		finally
 		{
-			// This can happen when the tiffStream is closed on an abort.
-			e.printStackTrace();
+			// Remaining clients may still be writing to the stream or
+			// saying goodbye to their node.
+			awaitClients(pool, out);
+		}
+
+		if (aborted)
+		{
+			msg(out, -1, "Aborted!");
+
+			if (nset.directStream)
+			{
+				msg(out, -1, "Closing stream.");
+				try
+				{
+					stream.close();
+
+					// Keep the checkpoint, the render can be resumed
+					// later.
+					if (checkpoint != null)
+						checkpoint.close();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+
+			// Callback
+			if (callback != null)
+				SwingUtilities.invokeLater(callback);
+
+			return;
+		}
+
+		// Clients which died late may have left bunches behind when all
+		// the others were already gone.
+		int left = sched.countLeft();
+		if (left > 0)
+		{
+			msg(out, -1, left + " bunches were not rendered, "
+					+ "no clients left to do them.");
+
+			if (nset.directStream)
+			{
+				try
+				{
+					stream.close();
+					if (checkpoint != null)
+						checkpoint.close();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
 
 			// Callback
 			if (callback != null)
@@ -649,15 +1316,12 @@ public class NetClient
 
 		if (!nset.directStream)
 		{
-			msg(out, -1, "Downscaling...");
-			job.resizeBack();
-
 			msg(out, -1, "Saving the image...");
 			try
 			{
-				int w = job.getWidth();
-				int h = job.getHeight();
-				int[] px = job.getPixels();
+				int w = nset.param.getWidth();
+				int h = nset.param.getHeight();
+				int[] px = image;
 
 				// Determine which writer to use
 				String a = nset.tfile.getName();
@@ -666,7 +1330,18 @@ public class NetClient
 				if (ext.equals("TIF") || ext.equals("TIFF"))
 				{
 					// Use own tiff writer
-					TIFFWriter.writeRGBImage(nset.tfile, px, w, h);
+					TIFFWriter.writeRGBImage(nset.tfile, px, w, h,
+							nset.tiffLayout);
+				}
+				else if (ext.equals("PNG"))
+				{
+					// Use own png writer, saves a copy
+					PNGWriter.writeRGBImage(nset.tfile, px, w, h);
+				}
+				else if (TilePyramidWriter.formatOf(nset.tfile) != -1)
+				{
+					// Tiles for web viewers
+					TilePyramidWriter.writeRGBImage(nset.tfile, px, w, h);
 				}
 				else
 				{
@@ -708,8 +1383,12 @@ public class NetClient
 		{
 			try
 			{
-				tiffStream.flush();
-				tiffStream.close();
+				stream.flush();
+				stream.close();
+
+				if (checkpoint != null)
+					checkpoint.delete();
+
 				msg(out, -1, "We're done. Have a nice day!");
 			}
 			catch (IOException e)
@@ -726,6 +1405,22 @@ public class NetClient
 			SwingUtilities.invokeLater(callback);
 	}
 
+	/**
+	 * Shut down the clients' pool and wait for all of them to quit.
+	 */
+	protected static void awaitClients(WorkerPool pool, NetConsole out)
+	{
+		try
+		{
+			pool.shutdown();
+		}
+		catch (InterruptedException e)
+		{
+			msg(out, -1, "Interrupted while waiting for the clients.");
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Used for loading local settings. See main().
 	 */
@@ -780,6 +1475,7 @@ public class NetClient
 		nset.tfile = new File(args[4]);
 
 		nset.directStream = true;
+		nset.resume = true;
 
 		// System.out as a NetConsole
 		final NetConsole out = new NetConsole()
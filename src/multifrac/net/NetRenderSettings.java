@@ -32,4 +32,32 @@ public class NetRenderSettings
 	public File              tfile         = null;
 
 	public boolean directStream = false;
+
+	// Continue an interrupted stream if its checkpoint matches.
+	public boolean resume = false;
+
+	public TIFFWriter.Layout tiffLayout = null;
+
+	// Compress pixel data on the wire if the node supports it.
+	public boolean compress = true;
+
+	// What nodes send: Node.VALUES_COLORS or one of RawWriter's formats.
+	// Values are colored here, so the gradient of "param" is used.
+	public int values = Node.VALUES_COLORS;
+
+	// Save the values as a raw file (always streamed). Requires values.
+	public boolean raw = false;
+
+	// Number of tokens sent to a node in advance.
+	public int window = 2;
+
+	// Size tokens by the cost of a preview render instead of evenly.
+	public boolean plan = true;
+
+	// Render on this machine as well, without a node.
+	public boolean local = true;
+
+	// Directory shared with the nodes (see SharedOutput). If the stream
+	// is a strip TIFF below it, nodes write right into the file.
+	public File sharedRoot = null;
 }
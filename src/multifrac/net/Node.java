@@ -21,23 +21,20 @@ package multifrac.net;
 
 import multifrac.*;
 
-import java.net.*;
 import java.io.*;
-import java.awt.*;
+import java.net.*;
 import java.util.*;
 import java.text.*;
+import java.security.*;
 
+/**
+ * Protocol constants and the main program of a render node. The actual
+ * work is done by NodeServer.
+ */
 public class Node
 {
 	public static final int defaultPort = 7331;
 
-	protected FractalParameters params = null;
-	protected int start, end, ID;
-	protected FractalRenderer.Job job  = null;
-	protected int xfers = 0;
-	protected double xfertime = 0.0;
-	protected double rendtime = 0.0;
-
 	public static final int CMD_CLOSE   = 0;
 	public static final int CMD_PING    = 1;
 	public static final int CMD_ADCPUS  = 2;
@@ -46,153 +43,115 @@ public class Node
 	public static final int CMD_ROWS  = 1010;
 	public static final int CMD_JOB   = 1100;
 
+	// Capabilities. Old nodes don't know CMD_CAPS and stay silent, so
+	// clients send a ping right after it: If the ping reply arrives
+	// first, the node doesn't support anything of this.
+	public static final int CMD_CAPS    = 1200;
+	public static final int CMD_SETCAPS = 1210;
+	public static final int CAPS_MAGIC  = 0x4D466361;
+
+	public static final int CAP_COMPRESS = 1;
+	public static final int CAP_VALUES   = 2;
+	public static final int CAP_PARALLEL = 4;
+	public static final int CAP_HEARTBEAT = 8;
+	public static final int CAP_ABORT = 16;
+	public static final int CAP_SPEED = 32;
+	public static final int CAP_PARAMCACHE = 64;
+	public static final int CAP_SHAREDFILE = 128;
+	public static final int CAP_REDUCE = 256;
+
+	// CAP_PARALLEL is only advertised: Jobs are rendered on all CPUs of
+	// this node, so clients need only one connection. The same goes for
+	// CAP_PARAMCACHE, such nodes can also be asked for a parameter set by
+	// its hash and connections to them may be kept open across renders.
+	public static final int CAPS_SUPPORTED =
+		CAP_COMPRESS | CAP_VALUES | CAP_PARALLEL | CAP_HEARTBEAT
+		| CAP_ABORT | CAP_SPEED | CAP_PARAMCACHE | CAP_REDUCE;
+
+	// With CAP_HEARTBEAT, each job reply starts with REPLY_JOB. While a
+	// client waits for its jobs, REPLY_HEARTBEAT is sent every
+	// HEARTBEAT_INTERVAL ms, so it can tell a busy node from a dead one.
+	public static final int REPLY_JOB       = 0x4D466A62;
+	public static final int REPLY_HEARTBEAT = 0x4D466862;
+	public static final int HEARTBEAT_INTERVAL = 1000;
+
+	// With CAP_ABORT, CMD_ABORT drops all jobs of the connection which
+	// haven't been sent yet, running ones stop after their current row.
+	// Replies which are partially sent are completed, then REPLY_ABORTED
+	// follows. Clients need CAP_HEARTBEAT as well to tell them apart.
+	public static final int CMD_ABORT     = 1300;
+	public static final int REPLY_ABORTED = 0x4D466162;
+
+	// With CAP_SPEED, CMD_SPEED is answered with the number of iterations
+	// one render thread does per millisecond. It's measured when the node
+	// starts.
+	public static final int CMD_SPEED = 1400;
+
+	// With CAP_PARAMCACHE, CMD_PARAMHASH is followed by the hash (a long,
+	// see paramHash()) of the data of CMD_PARAM. If the node has seen
+	// those parameters before, it uses them and replies PARAM_KNOWN.
+	// Otherwise, it replies PARAM_UNKNOWN and CMD_PARAM has to be sent.
+	public static final int CMD_PARAMHASH = 1005;
+	public static final int PARAM_KNOWN   = 1;
+	public static final int PARAM_UNKNOWN = 0;
+
+	// With CAP_SHAREDFILE, a node writes the rows of its jobs into a file
+	// it shares with the master (on a network file system, say) instead
+	// of sending them. CMD_OUTPUT is followed by the length of the path
+	// and the path (UTF-8, relative to the node's output directory), the
+	// position of the first row in the file (long), the number of bytes
+	// per row (int) and the size of the file (long). Rows are stored as 8
+	// bit RGB. The node replies OUTPUT_OK or OUTPUT_FAILED, job replies
+	// then have no payload. An empty path switches back to sending. Nodes
+	// only offer this if they were given an output directory.
+	public static final int CMD_OUTPUT    = 1500;
+	public static final int OUTPUT_OK     = 1;
+	public static final int OUTPUT_FAILED = 0;
+
+	// With CAP_REDUCE, CMD_REDUCE is followed by a factor (a power of 2).
+	// Jobs are still given in rendered rows, but each block of factor x
+	// factor pixels is averaged before it's sent. Jobs must begin and end
+	// on a multiple of the factor. Only colors can be reduced. A factor
+	// of 1 turns this off.
+	public static final int CMD_REDUCE = 1600;
+
+	// With CAP_VALUES, the client can ask for smooth iteration values
+	// instead of colors. The format is one of RawWriter's formats, the
+	// values are encoded just like in raw files.
+	public static final int CMD_VALUES    = 1220;
+	public static final int VALUES_COLORS = -1;
+
 	/**
-	 * Main node loop, receiving commands.
+	 * Number of bytes per pixel on the wire.
 	 */
-	public Node(int ID, Socket c, int numthreads)
+	public static int valueBytes(int values)
 	{
-		this.ID = ID;
-		msg("Connected: " + c);
+		return (values == RawWriter.FORMAT_FIXED16 ? 2 : 4);
+	}
 
+	/**
+	 * Hash of the data of CMD_PARAM (parameters, width and height): The
+	 * first 8 bytes of its SHA-1 digest.
+	 */
+	public static long paramHash(byte[] b, int off, int len)
+	{
+		MessageDigest md;
 		try
 		{
-			DataInputStream din;
-			DataOutputStream dout;
-			DataOutputStream bout;
-
-			din  = new DataInputStream(c.getInputStream());
-			dout = new DataOutputStream(c.getOutputStream());
-			bout = new DataOutputStream(
-					new BufferedOutputStream(c.getOutputStream()));
-
-			while (true)
-			{
-				int cmd = din.readInt();
-				switch (cmd)
-				{
-					case CMD_CLOSE:
-						msg("Closing as requested.");
-						if (xfers > 0)
-							msg("Statistics:\n"
-									+ "\tXFers: " + xfers + "\n"
-									+ "\tXTime: " + xfertime + "\n"
-									+ "\tAvgXf: " + (xfertime/xfers) + "\n"
-									+ "\tRTime: " + rendtime + "\n"
-									+ "\tAvgRe: " + (rendtime/xfers));
-
-						c.shutdownOutput();
-						c.shutdownInput();
-						c.close();
-						c = null;
-						return;
-
-					case CMD_PING:
-						msg("PONG");
-						dout.writeInt(din.readInt() + 1);
-						break;
-
-					case CMD_ADCPUS:
-						msg("Advertising number of processors.");
-						dout.writeInt(numthreads);
-						break;
-
-					case CMD_PARAM:
-						msg("Receiving FractalParameters and size...");
-						params = new FractalParameters(din);
-						int w = din.readInt();
-						int h = din.readInt();
-						params.updateSize(new Dimension(w, h));
-						msg("Done. Current settings:" + params
-								+ "\t.getWidth() : " + params.getWidth()
-								+ "\n"
-								+ "\t.getHeight(): " + params.getHeight()
-								);
-						break;
-
-					case CMD_ROWS:
-						msg("Receiving row count...");
-						int rows = din.readInt();
-
-						job = new FractalRenderer.Job(
-								params,
-								1,
-								-1,
-								null,
-								rows);
-
-						int len = job.getPixels().length;
-						msg("Done. Buffer allocated: " + len + " * 4 = "
-								+ (len * 4) + " Bytes");
-						break;
-
-					case CMD_JOB:
-						msg("Receiving TokenSettings...");
-						start = din.readInt();
-						end   = din.readInt();
-						msg("Okay. Rendering: " + start + ", " + end);
-
-						FractalRenderer rend =
-							new FractalRenderer(job, null);
-
-						// Start Timing: Rendering
-						long ns = System.nanoTime();
-						rend.renderPass(start, end);
-
-						double nd = (double)(System.nanoTime() - ns) / 1e9;
-						msg("Rendered. Time: " + nd + " seconds.");
-						rendtime += nd;
-
-						// Start Timing: Transmission
-						ns = System.nanoTime();
-						msg("Sending image...");
-						int at = 0;
-						int[] px = job.getPixels();
-						for (int y = start; y < end; y++)
-							for (int x = 0; x < job.getWidth(); x++)
-								bout.writeInt(px[at++]);
-						bout.flush();
-						nd = (double)(System.nanoTime() - ns) / 1e9;
-						msg("Sent. Time: " + nd + " seconds.");
-
-						xfertime += nd;
-						xfers++;
-
-						msg("Finished this token.");
-						break;
-
-					default:
-						err("Invalid command received.");
-				}
-			}
+			md = MessageDigest.getInstance("SHA-1");
 		}
-		catch (EOFException e)
+		catch (NoSuchAlgorithmException e)
 		{
-			msg("Peer hung up. Thread quitting.");
-		}
-		catch (SocketException e)
-		{
-			msg("Socket gone. Thread quitting.");
-			e.printStackTrace();
-		}
-		catch (Throwable e)
-		{
-			err("Unexpected error! Thread quitting.");
-			e.printStackTrace();
-		}
-		finally
-		{
-			try
-			{
-				if (c != null)
-				{
-					c.shutdownOutput();
-					c.shutdownInput();
-					c.close();
-					c = null;
-				}
-			}
-			catch (IOException ignore) {}
+			throw new RuntimeException(e);
 		}
+
+		md.update(b, off, len);
+		byte[] d = md.digest();
+
+		long h = 0;
+		for (int i = 0; i < 8; i++)
+			h = (h << 8) | (d[i] & 0xFF);
+		return h;
 	}
 
 	public static String st()
@@ -201,16 +160,6 @@ public class Node
 		return sdf.format(new Date());
 	}
 
-	protected void msg(String m)
-	{
-		System.out.println("(II) " + st() + " [" + ID + "] " + m);
-	}
-
-	protected void err(String m)
-	{
-		System.err.println("(EE) " + st() + " [" + ID + "] " + m);
-	}
-
 	/**
 	 * Main server loop.
 	 */
@@ -219,6 +168,9 @@ public class Node
 		String host = "localhost";
 		int    port = defaultPort;
 		int threads = Multifrac.numthreads;
+		int maxConnections = 64;
+		long memory = Runtime.getRuntime().maxMemory() / 2;
+		File outputDir = null;
 
 		try
 		{
@@ -230,11 +182,19 @@ public class Node
 					port = new Integer(args[++i]);
 				else if (args[i].toUpperCase().equals("-T"))
 					threads = new Integer(args[++i]);
+				else if (args[i].toUpperCase().equals("-C"))
+					maxConnections = Integer.parseInt(args[++i]);
+				else if (args[i].toUpperCase().equals("-M"))
+					memory = Long.parseLong(args[++i]) * 1024 * 1024;
+				else if (args[i].toUpperCase().equals("-W"))
+					outputDir = new File(args[++i]);
 				else if (args[i].toUpperCase().equals("--HELP"))
 				{
 					System.out.println(
 							"Arguments: [-h host] [-p port]"
-							+ " [-t threads] [--help]");
+							+ " [-t threads] [-c max. connections]"
+							+ " [-m memory for jobs in MB]"
+							+ " [-w shared output directory] [--help]");
 					return;
 				}
 			}
@@ -248,37 +208,36 @@ public class Node
 
 		System.out.println("Rendernode starting...");
 
-		ServerSocket s = null;
-		try
+		if (threads < 1)
 		{
-			final int finalthreads = threads;
-
-			s = new ServerSocket(port, 0, InetAddress.getByName(host));
-			System.out.println("ServerSocket up: " + s);
-			System.out.println("Configured options:\n"
-					+ "\tthreads = " + finalthreads);
+			System.err.println("Less than 1 thread is not useful.");
+			return;
+		}
 
-			if (finalthreads < 1)
-			{
-				System.err.println("Less than 1 thread is not useful.");
-				return;
-			}
+		if (outputDir != null && !outputDir.isDirectory())
+		{
+			System.err.println("Not a directory: " + outputDir);
+			return;
+		}
 
-			int ID = 1;
-			while (true)
-			{
-				final Socket client = s.accept();
-				final int thisID = ID++;
-				Thread t = new Thread()
-				{
-					@Override
-					public void run()
-					{
-						new Node(thisID, client, finalthreads);
-					}
-				};
-				t.start();
-			}
+		try
+		{
+			NodeServer s = new NodeServer(new InetSocketAddress(
+						InetAddress.getByName(host), port),
+					threads, maxConnections, memory);
+			s.setOutputDir(outputDir);
+			System.out.println("ServerSocket up: " + s.getChannel());
+			System.out.println("Configured options:\n"
+					+ "\tthreads = " + threads + "\n"
+					+ "\tmax. connections = " + maxConnections + "\n"
+					+ "\tmemory for jobs = " + (memory / 1024 / 1024)
+					+ " MB\n"
+					+ "\tspeed = " + s.getSpeed()
+					+ " iterations per ms and thread\n"
+					+ "\tshared output = "
+					+ (outputDir == null ? "none" : outputDir));
+
+			s.serve();
 		}
 		catch (Throwable e)
 		{
@@ -286,19 +245,5 @@ public class Node
 			e.printStackTrace();
 			System.exit(1);
 		}
-		finally
-		{
-			try
-			{
-				if (s != null)
-				{
-					// A ServerSocket has never been "connected", so there's no
-					// need to shut it down.
-					s.close();
-					s = null;
-				}
-			}
-			catch (IOException ignore) {}
-		}
 	}
 }
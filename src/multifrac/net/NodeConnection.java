@@ -0,0 +1,248 @@
+/*
+	Copyright 2009 Peter Hofmann
+
+	This file is part of Multifrac.
+
+	Multifrac is free software: you can redistribute it and/or modify it
+	under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Multifrac is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Multifrac. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package multifrac.net;
+
+import java.io.*;
+
+/**
+ * A connection to a render node along with what's known about the node
+ * and the state of its side of the connection. Connections to nodes with
+ * CAP_PARAMCACHE outlive a render (see ConnectionPool), so none of this
+ * has to be asked or sent again.
+ */
+public class NodeConnection
+{
+	public final String host;
+	public final int port;
+	public final PixelIO io;
+
+	// Answers of the node, -1 if it hasn't been asked yet.
+	private int cpus = -1;
+	private int speed = -1;
+	private int supported = -1;
+
+	// Enabled features and the parameters the node has for us.
+	private int enabled = 0;
+	private long paramHash = 0;
+	private boolean hasParams = false;
+	private boolean hasOutput = false;
+
+	protected long idleSince = 0;
+
+	public NodeConnection(String host, int port, PixelIO io)
+	{
+		this.host = host;
+		this.port = port;
+		this.io   = io;
+	}
+
+	/**
+	 * Connect to the given node.
+	 */
+	public static NodeConnection connect(String host, int port)
+		throws IOException
+	{
+		return new NodeConnection(host, port, PixelIO.connect(host, port));
+	}
+
+	/**
+	 * Number of CPUs of the node.
+	 */
+	public int getCPUs() throws IOException
+	{
+		if (cpus == -1)
+		{
+			io.out.writeInt(Node.CMD_ADCPUS);
+			io.out.flush();
+			cpus = io.in.readInt();
+		}
+		return cpus;
+	}
+
+	/**
+	 * Iterations per ms and thread (see CMD_SPEED). Only call this if the
+	 * node supports CAP_SPEED.
+	 */
+	public int getSpeed() throws IOException
+	{
+		if (speed == -1)
+		{
+			io.out.writeInt(Node.CMD_SPEED);
+			io.out.flush();
+			speed = io.in.readInt();
+		}
+		return speed;
+	}
+
+	/**
+	 * Optional features the node supports.
+	 */
+	public int getSupported() throws IOException
+	{
+		if (supported == -1)
+			supported = NetClient.queryCaps(io);
+		return supported;
+	}
+
+	/**
+	 * Enable those features of "want" which the node supports. Returns
+	 * the enabled features.
+	 */
+	public int negotiate(int want) throws IOException
+	{
+		if (want == 0 && enabled == 0)
+			return 0;
+
+		int caps = getSupported() & want;
+		if (caps != enabled)
+		{
+			io.out.writeInt(Node.CMD_SETCAPS);
+			io.out.writeInt(caps);
+			enabled = caps;
+		}
+
+		return caps;
+	}
+
+	/**
+	 * Send the data of CMD_PARAM ("block"). Nothing is sent if the node
+	 * already uses these parameters on this connection, only their hash
+	 * if it has cached them. Returns what has been done, for the log.
+	 */
+	public String sendParams(byte[] block) throws IOException
+	{
+		long hash = Node.paramHash(block, 0, block.length);
+		if (hasParams && hash == paramHash)
+			return "Parameters already set.";
+
+		String how = "Parameters sent.";
+		boolean known = false;
+		if ((getSupported() & Node.CAP_PARAMCACHE) != 0)
+		{
+			io.out.writeInt(Node.CMD_PARAMHASH);
+			io.out.writeLong(hash);
+			io.out.flush();
+
+			known = (io.in.readInt() == Node.PARAM_KNOWN);
+			if (known)
+				how = "Parameters were cached by the node.";
+		}
+
+		if (!known)
+		{
+			io.out.writeInt(Node.CMD_PARAM);
+			io.out.write(block);
+		}
+
+		paramHash = hash;
+		hasParams = true;
+		return how;
+	}
+
+	/**
+	 * Make the node write the rows of our jobs into "out" (see
+	 * CMD_OUTPUT). If it's null, the node sends them again. Returns false
+	 * if the node can't use the file.
+	 */
+	public boolean setOutput(SharedOutput out) throws IOException
+	{
+		if (out == null && !hasOutput)
+			return true;
+
+		byte[] path = (out == null ? new byte[0]
+				: out.path.getBytes("UTF-8"));
+
+		io.out.writeInt(Node.CMD_OUTPUT);
+		io.out.writeInt(path.length);
+		io.out.write(path);
+		io.out.writeLong(out == null ? 0 : out.offset);
+		io.out.writeInt(out == null ? 0 : out.stride);
+		io.out.writeLong(out == null ? 0 : out.length);
+		io.out.flush();
+
+		// Aborted jobs may still be running, so there can be heartbeats.
+		int reply;
+		while ((reply = io.in.readInt()) == Node.REPLY_HEARTBEAT);
+
+		hasOutput = (out != null && reply == Node.OUTPUT_OK);
+		return out == null || hasOutput;
+	}
+
+	/**
+	 * Whether this connection may be kept open after a render.
+	 */
+	public boolean isPersistent()
+	{
+		return supported != -1 && (supported & Node.CAP_PARAMCACHE) != 0;
+	}
+
+	/**
+	 * Check if an idle connection still works.
+	 */
+	public boolean isAlive()
+	{
+		try
+		{
+			int challenge = (int)(Math.random() * Integer.MAX_VALUE * 0.5);
+			io.setTimeout(PixelIO.CONNECT_TIMEOUT);
+			io.out.writeInt(Node.CMD_PING);
+			io.out.writeInt(challenge);
+			io.out.flush();
+			return io.in.readInt() == challenge + 1;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Say goodbye and close the connection.
+	 */
+	public void quit()
+	{
+		try
+		{
+			io.out.writeInt(Node.CMD_CLOSE);
+			io.out.flush();
+		}
+		catch (IOException ignore) {}
+
+		close();
+	}
+
+	/**
+	 * Close the connection right away.
+	 */
+	public void close()
+	{
+		try
+		{
+			io.close();
+		}
+		catch (IOException ignore) {}
+	}
+
+	@Override
+	public String toString()
+	{
+		return host + ":" + port;
+	}
+}
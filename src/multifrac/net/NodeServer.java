@@ -0,0 +1,1301 @@
+/*
+	Copyright 2009 Peter Hofmann
+
+	This file is part of Multifrac.
+
+	Multifrac is free software: you can redistribute it and/or modify it
+	under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Multifrac is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Multifrac. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package multifrac.net;
+
+import multifrac.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.channels.Selector;
+import java.awt.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The server of a render node. All connections are handled by one thread
+ * using a Selector: It parses the commands, hands jobs to a fixed pool of
+ * render threads and writes the replies once they're ready. Replies are
+ * sent in the order of the commands.
+ *
+ * A job is only started if there's enough memory left for its pixels and
+ * if not too many jobs are running. Otherwise, it waits in the queue of
+ * its connection, which isn't read from once that queue is full. Waiting
+ * connections are served in FIFO order, so several masters share the
+ * node fairly.
+ *
+ * CMD_ABORT drops the queued jobs of a connection and stops its running
+ * ones after their current row. The same happens if a client hangs up.
+ *
+ * Parameter sets are cached for all connections, so a master which
+ * renders the same image again only sends their hash.
+ *
+ * Supersampled jobs can be downscaled here (see CMD_REDUCE), so only the
+ * pixels of the final image are sent.
+ *
+ * If the node has an output directory on a file system it shares with
+ * the master, jobs can be written right into the image there (see
+ * CMD_OUTPUT), so only an empty reply has to be sent.
+ */
+public class NodeServer
+{
+	protected static final int INBUF = 64 * 1024;
+	protected static final int MAX_INBUF = 16 * 1024 * 1024;
+
+	protected static final int MAX_PENDING = 16;
+
+	// Number of parameter sets kept for CMD_PARAMHASH.
+	protected static final int PARAM_CACHE = 64;
+
+	/**
+	 * A reply in the output queue of a connection. Replies of jobs have
+	 * no data until the job is done. The header is sent right before the
+	 * data.
+	 */
+	private static class Reply
+	{
+		public ByteBuffer header = null;
+		public ByteBuffer data = null;
+		public long memory = 0;
+		public boolean job = false;
+		public boolean dropped = false;
+
+		/**
+		 * Whether parts of this reply have been sent.
+		 */
+		public boolean started()
+		{
+			return (header != null && header.position() > 0)
+				|| (data != null && data.position() > 0);
+		}
+	}
+
+	/**
+	 * A file in the output directory which jobs are written to. Rows
+	 * are stored as RGB, "stride" bytes apart. It's used by a connection
+	 * and its jobs and closed once the last one lets go of it.
+	 */
+	private static class SharedFile
+	{
+		public FileChannel chan = null;
+		public long offset, length;
+		public int stride;
+		public int users = 1;
+
+		/**
+		 * Write the rows "start" to "end" (exclusive), they're given as
+		 * packed RGB ints.
+		 */
+		public void write(int[] px, int start, int end, int w)
+			throws IOException
+		{
+			ByteBuffer b = ByteBuffer.allocate((end - start) * stride);
+			for (int i = 0; i < (end - start) * w; i++)
+			{
+				b.put((byte)(px[i] >> 16));
+				b.put((byte)(px[i] >> 8));
+				b.put((byte)px[i]);
+			}
+			b.flip();
+
+			long pos = offset + (long)start * stride;
+			while (b.hasRemaining())
+				pos += chan.write(b, pos);
+
+			// The master may read the file as soon as we reply.
+			chan.force(false);
+		}
+
+		/**
+		 * Called by the selector thread only.
+		 */
+		public void release()
+		{
+			if (--users > 0)
+				return;
+
+			try
+			{
+				chan.close();
+			}
+			catch (IOException ignore) {}
+		}
+	}
+
+	/**
+	 * A job which waits for admission. It keeps the settings which were
+	 * current when it was received.
+	 */
+	private static class Pending
+	{
+		public int start, end;
+		public long cost;
+		public FractalRenderer.Job job = null;
+		public int values;
+		public int reduce;
+		public SharedFile output = null;
+	}
+
+	/**
+	 * A job running on the pool. Its rows are handed out one by one. The
+	 * thread which finishes the last row encodes the payload.
+	 */
+	private static class RenderJob
+	{
+		public Connection conn = null;
+		public Reply reply = null;
+		public FractalRenderer rend = null;
+		public int[] px = null;
+		public int start, end, w;
+		public int values;
+		public int reduce;
+		public PixelCodec codec = null;
+		public SharedFile output = null;
+		public AtomicInteger next = null;
+		public AtomicInteger remaining = null;
+		public long started = 0;
+
+		public ByteBuffer payload = null;
+		public volatile Throwable error = null;
+		public volatile boolean aborted = false;
+		public double time = 0.0;
+	}
+
+	/**
+	 * State of one connection. Only used on the selector thread.
+	 */
+	private class Connection
+	{
+		public int ID;
+		public SocketChannel ch = null;
+		public SelectionKey key = null;
+		public ByteBuffer in = ByteBuffer.allocate(INBUF);
+		public ArrayDeque<Reply> out = new ArrayDeque<Reply>();
+		public boolean closing = false;
+		public boolean closed = false;
+
+		// Jobs waiting for admission.
+		public ArrayDeque<Pending> pending = new ArrayDeque<Pending>();
+
+		public FractalParameters params = null;
+		public FractalRenderer.Job job = null;
+		public int rows = 0;
+		public int caps = 0;
+		public int values = Node.VALUES_COLORS;
+		public int reduce = 1;
+		public PixelCodec codec = null;
+		public SharedFile output = null;
+		public ArrayList<RenderJob> running = new ArrayList<RenderJob>();
+
+		public int xfers = 0;
+		public double rendtime = 0.0;
+		public long sent = 0;
+		public long lastSent = System.currentTimeMillis();
+
+		public Connection(int ID, SocketChannel ch)
+		{
+			this.ID = ID;
+			this.ch = ch;
+		}
+
+		/**
+		 * Read what's available and process it.
+		 */
+		public void read() throws IOException
+		{
+			if (!in.hasRemaining())
+			{
+				// A parameter block which doesn't fit.
+				if (in.capacity() >= MAX_INBUF)
+					throw new IOException("Command too large.");
+
+				ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+				in.flip();
+				bigger.put(in);
+				in = bigger;
+			}
+
+			if (ch.read(in) < 0)
+			{
+				msg(ID, "Peer hung up.");
+				close();
+				return;
+			}
+
+			process();
+		}
+
+		/**
+		 * Execute all complete commands in the input buffer.
+		 */
+		public void process() throws IOException
+		{
+			in.flip();
+			try
+			{
+				while (pending.size() < MAX_PENDING && !closing && !closed
+						&& in.remaining() >= 4)
+				{
+					in.mark();
+					if (!command(in.getInt()))
+					{
+						// Incomplete, wait for more data.
+						in.reset();
+						break;
+					}
+				}
+			}
+			finally
+			{
+				in.compact();
+			}
+
+			updateInterest();
+		}
+
+		/**
+		 * Execute one command. Returns false if its arguments haven't
+		 * been received completely.
+		 */
+		public boolean command(int cmd) throws IOException
+		{
+			switch (cmd)
+			{
+				case Node.CMD_CLOSE:
+					msg(ID, "Closing as requested.");
+					closing = true;
+					return true;
+
+				case Node.CMD_PING:
+					if (in.remaining() < 4)
+						return false;
+					msg(ID, "PONG");
+					replyInts(in.getInt() + 1);
+					return true;
+
+				case Node.CMD_ADCPUS:
+					msg(ID, "Advertising number of processors.");
+					replyInts(numthreads);
+					return true;
+
+				case Node.CMD_SPEED:
+					msg(ID, "Advertising speed.");
+					replyInts(speed);
+					return true;
+
+				case Node.CMD_CAPS:
+					msg(ID, "Advertising capabilities.");
+					replyInts(Node.CAPS_MAGIC, supported());
+					return true;
+
+				case Node.CMD_SETCAPS:
+					if (in.remaining() < 4)
+						return false;
+					caps = in.getInt() & supported();
+					msg(ID, "Enabled capabilities: " + caps);
+					if ((caps & Node.CAP_COMPRESS) != 0 && codec == null)
+						codec = new PixelCodec();
+
+					// The connection may be used for another render.
+					if ((caps & Node.CAP_VALUES) == 0
+							&& values != Node.VALUES_COLORS)
+					{
+						values = Node.VALUES_COLORS;
+						if (job != null)
+							newJob();
+					}
+					if ((caps & Node.CAP_SHAREDFILE) == 0)
+						setOutput(null);
+					if ((caps & Node.CAP_REDUCE) == 0)
+						reduce = 1;
+					return true;
+
+				case Node.CMD_REDUCE:
+					if (in.remaining() < 4)
+						return false;
+					int factor = in.getInt();
+					if (factor < 1 || factor > 16
+							|| (factor & (factor - 1)) != 0)
+						throw new IOException("Invalid factor: " + factor);
+					if ((caps & Node.CAP_REDUCE) != 0)
+						reduce = factor;
+					msg(ID, "Reducing by: " + reduce);
+					return true;
+
+				case Node.CMD_VALUES:
+					if (in.remaining() < 4)
+						return false;
+					values = in.getInt();
+					if ((caps & Node.CAP_VALUES) == 0)
+						values = Node.VALUES_COLORS;
+					msg(ID, "Sending values as: " + values);
+					if (job != null)
+						newJob();
+					return true;
+
+				case Node.CMD_PARAM:
+					return receiveParams();
+
+				case Node.CMD_OUTPUT:
+					return receiveOutput();
+
+				case Node.CMD_PARAMHASH:
+					if (in.remaining() < 8)
+						return false;
+					long hash = in.getLong();
+					FractalParameters cached = paramCache.get(hash);
+					if (cached != null)
+					{
+						params = new FractalParameters(cached);
+						msg(ID, "Using cached parameters, size "
+								+ params.getWidth() + "x"
+								+ params.getHeight() + ".");
+						replyInts(Node.PARAM_KNOWN);
+					}
+					else
+					{
+						msg(ID, "Parameters not cached.");
+						replyInts(Node.PARAM_UNKNOWN);
+					}
+					return true;
+
+				case Node.CMD_ROWS:
+					if (in.remaining() < 4)
+						return false;
+					rows = in.getInt();
+
+					if (params == null)
+						throw new IOException("CMD_ROWS before CMD_PARAM.");
+
+					long bytes = jobCost(rows * (long)params.getWidth());
+					if (rows <= 0 || bytes > memoryBudget)
+						throw new IOException("Row count " + rows
+								+ " exceeds the memory budget.");
+
+					newJob();
+					msg(ID, "Row count: " + rows + ", up to " + bytes
+							+ " Bytes per job.");
+					return true;
+
+				case Node.CMD_JOB:
+					if (in.remaining() < 8)
+						return false;
+					int start = in.getInt();
+					int end   = in.getInt();
+					msg(ID, "Job: " + start + ", " + end);
+
+					if (job == null || start < 0 || end <= start
+							|| end - start > rows
+							|| end > job.getHeight())
+						throw new IOException("Invalid job: " + start
+								+ ", " + end);
+
+					if (reduce > 1 && (values != Node.VALUES_COLORS
+								|| start % reduce != 0 || end % reduce != 0
+								|| job.getWidth() % reduce != 0))
+						throw new IOException("Can't reduce job: " + start
+								+ ", " + end);
+
+					if (output != null && (values != Node.VALUES_COLORS
+								|| output.stride
+									!= job.getWidth() / reduce * 3
+								|| output.offset + end / reduce
+									* (long)output.stride > output.length))
+						throw new IOException("Job " + start + ", " + end
+								+ " doesn't fit into the output file.");
+
+					Pending pj = new Pending();
+					pj.start  = start;
+					pj.end    = end;
+					pj.cost   = jobCost((end - start) * (long)job.getWidth());
+					pj.job    = job;
+					pj.values = values;
+					pj.reduce = reduce;
+					pj.output = output;
+					if (output != null)
+						output.users++;
+					pending.addLast(pj);
+
+					while (!pending.isEmpty() && admit(this))
+						startJob();
+
+					if (!pending.isEmpty())
+						msg(ID, "Waiting for resources.");
+					return true;
+
+				case Node.CMD_ABORT:
+					abort();
+					replyInts(Node.REPLY_ABORTED);
+					return true;
+
+				default:
+					err(ID, "Invalid command received.");
+					return true;
+			}
+		}
+
+		/**
+		 * Receive the parameters and the size. Returns false if they're
+		 * incomplete. They're cached by the hash of the received bytes.
+		 */
+		public boolean receiveParams() throws IOException
+		{
+			int from = in.arrayOffset() + in.position();
+			ByteArrayInputStream bis = new ByteArrayInputStream(
+					in.array(), in.arrayOffset() + in.position(),
+					in.remaining());
+			DataInputStream din = new DataInputStream(bis);
+
+			FractalParameters p;
+			int w, h;
+			try
+			{
+				p = new FractalParameters(din);
+				w = din.readInt();
+				h = din.readInt();
+			}
+			catch (EOFException e)
+			{
+				return false;
+			}
+			catch (Exception e)
+			{
+				throw new IOException("Invalid parameters.", e);
+			}
+
+			if (w <= 0 || h <= 0)
+				throw new IOException("Invalid size: " + w + "x" + h);
+
+			in.position(in.position() + in.remaining() - bis.available());
+
+			p.updateSize(new Dimension(w, h));
+			params = p;
+			paramCache.put(Node.paramHash(in.array(), from,
+						in.arrayOffset() + in.position() - from),
+					new FractalParameters(p));
+			msg(ID, "Received parameters, size " + w + "x" + h + ".");
+			return true;
+		}
+
+		/**
+		 * Receive the output file. Returns false if the command is
+		 * incomplete. If the file can't be used, the connection goes on
+		 * sending its rows.
+		 */
+		public boolean receiveOutput() throws IOException
+		{
+			if (in.remaining() < 4)
+				return false;
+
+			int len = in.getInt();
+			if (len < 0 || len > 4096)
+				throw new IOException("Invalid path length: " + len);
+			if (in.remaining() < len + 20)
+				return false;
+
+			byte[] b = new byte[len];
+			in.get(b);
+			long offset = in.getLong();
+			int stride  = in.getInt();
+			long length = in.getLong();
+
+			setOutput(null);
+			if (len == 0)
+			{
+				msg(ID, "Sending rows.");
+				replyInts(Node.OUTPUT_OK);
+				return true;
+			}
+
+			String path = new String(b, "UTF-8");
+			try
+			{
+				if ((caps & Node.CAP_SHAREDFILE) == 0)
+					throw new IOException("Not enabled.");
+
+				setOutput(openShared(path, offset, stride, length));
+				msg(ID, "Writing rows to \"" + path + "\".");
+				replyInts(Node.OUTPUT_OK);
+			}
+			catch (IOException e)
+			{
+				err(ID, "Can't write to \"" + path + "\": "
+						+ e.getMessage());
+				replyInts(Node.OUTPUT_FAILED);
+			}
+			return true;
+		}
+
+		/**
+		 * Replace the output file, null means sending rows. Jobs which
+		 * have already been received keep the old one.
+		 */
+		public void setOutput(SharedFile f)
+		{
+			if (output != null)
+				output.release();
+			output = f;
+		}
+
+		/**
+		 * Drop the pending jobs.
+		 */
+		public void clearPending()
+		{
+			for (Pending pj : pending)
+				if (pj.output != null)
+					pj.output.release();
+			pending.clear();
+		}
+
+		/**
+		 * Create the job for the current parameters. Running jobs keep
+		 * the old one.
+		 */
+		public void newJob()
+		{
+			job = new FractalRenderer.Job(params, 1, -1, null, 0);
+			job.raw = (values != Node.VALUES_COLORS);
+		}
+
+		/**
+		 * Start the first pending job, it has been admitted.
+		 */
+		public void startJob()
+		{
+			Pending pj = pending.removeFirst();
+
+			final RenderJob rj = new RenderJob();
+			rj.conn   = this;
+			rj.reply  = new Reply();
+			rj.reply.memory = pj.cost;
+			rj.reply.job = true;
+			if ((caps & Node.CAP_HEARTBEAT) != 0)
+				rj.reply.header = ints(Node.REPLY_JOB);
+			rj.rend   = new FractalRenderer(pj.job, null);
+			rj.w      = pj.job.getWidth();
+			rj.start  = pj.start;
+			rj.end    = pj.end;
+			rj.px     = new int[(rj.end - rj.start) * rj.w];
+			rj.values = pj.values;
+			rj.reduce = pj.reduce;
+			rj.codec  = ((caps & Node.CAP_COMPRESS) != 0 ? codec : null);
+			rj.output = pj.output;
+			rj.next      = new AtomicInteger(rj.start);
+			rj.started   = System.nanoTime();
+
+			out.addLast(rj.reply);
+			running.add(rj);
+
+			int n = Math.min(numthreads, rj.end - rj.start);
+			rj.remaining = new AtomicInteger(n);
+			for (int i = 0; i < n; i++)
+			{
+				pool.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						renderRows(rj);
+					}
+				});
+			}
+		}
+
+		/**
+		 * A job of this connection is done, its reply can be sent.
+		 */
+		public void jobDone(RenderJob rj) throws IOException
+		{
+			running.remove(rj);
+			if (rj.reply.dropped)
+			{
+				release(rj.reply.memory);
+				rj.reply.memory = 0;
+				return;
+			}
+
+			if (rj.error != null)
+			{
+				release(rj.reply.memory);
+				rj.reply.memory = 0;
+				throw new IOException("Render error.", rj.error);
+			}
+
+			rendtime += rj.time;
+			rj.reply.data = rj.payload;
+			updateInterest();
+		}
+
+		/**
+		 * Write as many replies as possible.
+		 */
+		public void write() throws IOException
+		{
+			while (!out.isEmpty() && out.peekFirst().data != null)
+			{
+				Reply r = out.peekFirst();
+				long n = 0;
+				if (r.header != null && r.header.hasRemaining())
+					n += ch.write(r.header);
+				if (r.header == null || !r.header.hasRemaining())
+					n += ch.write(r.data);
+
+				sent += n;
+				if (n > 0)
+					lastSent = System.currentTimeMillis();
+
+				if (r.data.hasRemaining())
+					break;
+
+				out.removeFirst();
+				if (r.memory > 0)
+				{
+					xfers++;
+					release(r.memory);
+					r.memory = 0;
+				}
+			}
+
+			updateInterest();
+		}
+
+		/**
+		 * Queue a reply of some ints.
+		 */
+		public void replyInts(int... v)
+		{
+			Reply r = new Reply();
+			r.data = ints(v);
+			out.addLast(r);
+		}
+
+		/**
+		 * Drop all pending jobs and the replies of jobs which haven't
+		 * been sent yet. Running jobs stop after their current row.
+		 * Replies which are partially sent are completed.
+		 */
+		public void abort()
+		{
+			int dropped = pending.size();
+			clearPending();
+			waiting.remove(this);
+
+			for (RenderJob rj : running)
+				rj.aborted = true;
+
+			Iterator<Reply> it = out.iterator();
+			while (it.hasNext())
+			{
+				Reply r = it.next();
+				if (!r.job || r.started())
+					continue;
+
+				it.remove();
+				r.dropped = true;
+				dropped++;
+
+				if (r.data != null && r.memory > 0)
+				{
+					release(r.memory);
+					r.memory = 0;
+				}
+			}
+
+			msg(ID, "Aborted " + dropped + " jobs.");
+		}
+
+		/**
+		 * Send a heartbeat if the client waits for a job and hasn't heard
+		 * from us for a while. It's only sent in between two replies,
+		 * i.e. if nothing is being written right now.
+		 */
+		public void heartbeat(long now) throws IOException
+		{
+			if (closed || (caps & Node.CAP_HEARTBEAT) == 0)
+				return;
+			if (running.isEmpty() && pending.isEmpty())
+				return;
+			if (now - lastSent < Node.HEARTBEAT_INTERVAL)
+				return;
+			if (!out.isEmpty() && out.peekFirst().data != null)
+				return;
+
+			Reply r = new Reply();
+			r.data = ints(Node.REPLY_HEARTBEAT);
+			out.addFirst(r);
+			lastSent = now;
+			updateInterest();
+		}
+
+		/**
+		 * Update the operations the selector waits for. Reading stops
+		 * while the queue of pending jobs is full.
+		 */
+		public void updateInterest() throws IOException
+		{
+			if (closed)
+				return;
+
+			if (closing && out.isEmpty() && running.isEmpty())
+			{
+				close();
+				return;
+			}
+
+			int ops = 0;
+			if (pending.size() < MAX_PENDING && !closing)
+				ops |= SelectionKey.OP_READ;
+			if (!out.isEmpty() && out.peekFirst().data != null)
+				ops |= SelectionKey.OP_WRITE;
+			key.interestOps(ops);
+		}
+
+		/**
+		 * Close the connection. Memory of replies which are ready but
+		 * unsent is released here, that of running jobs once they're
+		 * done.
+		 */
+		public void close()
+		{
+			if (closed)
+				return;
+			closed = true;
+
+			if (xfers > 0)
+				msg(ID, "Statistics:\n"
+						+ "\tXFers: " + xfers + "\n"
+						+ "\tRTime: " + rendtime + "\n"
+						+ "\tAvgRe: " + (rendtime/xfers) + "\n"
+						+ "\tBytes: " + sent
+						+ (codec == null ? "" : " (uncompressed: "
+							+ codec.rawBytes + ")"));
+
+			for (Reply r : out)
+			{
+				if (r.data != null && r.memory > 0)
+				{
+					release(r.memory);
+					r.memory = 0;
+				}
+			}
+			out.clear();
+
+			// Nobody is interested in the running jobs anymore.
+			for (RenderJob rj : running)
+				rj.aborted = true;
+
+			clearPending();
+			setOutput(null);
+			waiting.remove(this);
+			connections--;
+
+			key.cancel();
+			try
+			{
+				ch.close();
+			}
+			catch (IOException ignore) {}
+
+			if (codec != null && running.isEmpty())
+				codec.end();
+
+			admitWaiting();
+		}
+	}
+
+
+	private Selector selector = null;
+	private ServerSocketChannel server = null;
+	private ExecutorService pool = null;
+	private int numthreads = 1;
+	private int maxConnections = 0;
+	private int maxJobs = 0;
+	private long memoryBudget = 0;
+	private int speed = 0;
+	private File outputDir = null;
+
+	private long memoryUsed = 0;
+	private int jobsRunning = 0;
+	private int connections = 0;
+	private int lastID = 0;
+	private ArrayDeque<Connection> waiting = new ArrayDeque<Connection>();
+
+	// Recently received parameter sets by hash, least recently used
+	// ones are dropped.
+	private LinkedHashMap<Long, FractalParameters> paramCache =
+		new LinkedHashMap<Long, FractalParameters>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Long, FractalParameters> e)
+			{
+				return size() > PARAM_CACHE;
+			}
+		};
+	private ConcurrentLinkedQueue<RenderJob> finished =
+		new ConcurrentLinkedQueue<RenderJob>();
+
+	/**
+	 * Create a server listening on "addr". At most "maxConnections"
+	 * clients are accepted, the pixels of running and unsent jobs use at
+	 * most "memoryBudget" bytes.
+	 */
+	public NodeServer(InetSocketAddress addr, int numthreads,
+			int maxConnections, long memoryBudget) throws IOException
+	{
+		this.numthreads = numthreads;
+		this.maxConnections = maxConnections;
+		this.memoryBudget = memoryBudget;
+
+		// Two jobs per thread: One is rendered, the next one is ready
+		// to take over.
+		this.maxJobs = 2 * numthreads;
+
+		this.speed = calibrate();
+
+		pool = Executors.newFixedThreadPool(numthreads, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "Node render thread");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.socket().bind(addr);
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	public ServerSocketChannel getChannel()
+	{
+		return server;
+	}
+
+	/**
+	 * Allow writing jobs to files below "dir" (see CMD_OUTPUT). It should
+	 * be on a file system shared with the masters. null turns this off.
+	 */
+	public void setOutputDir(File dir) throws IOException
+	{
+		outputDir = (dir == null ? null : dir.getCanonicalFile());
+	}
+
+	/**
+	 * Iterations per millisecond and thread, see calibrate().
+	 */
+	public int getSpeed()
+	{
+		return speed;
+	}
+
+	/**
+	 * Measure how many iterations one thread does per millisecond. A
+	 * small part of the main cardioid is rendered, so each pixel takes
+	 * exactly nmax iterations. The first runs only warm up the JIT, the
+	 * best of the remaining ones counts.
+	 */
+	public static int calibrate()
+	{
+		FractalParameters p = new FractalParameters();
+		p.type = FractalParameters.TYPE_MANDELBROT;
+		p.adaptive = false;
+		p.nmax = 20000;
+		p.zoom = 1e-3;
+		p.centerOffset.setLocation(-0.25, 0.0);
+		p.updateSize(new Dimension(64, 8));
+
+		FractalRenderer.Job job = new FractalRenderer.Job(p, 1, 0, null);
+		FractalRenderer rend = new FractalRenderer(job, null);
+		long iterations = (long)job.getWidth() * job.getHeight() * p.nmax;
+
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++)
+		{
+			long t = System.nanoTime();
+			rend.renderPass(0, job.getHeight());
+			t = System.nanoTime() - t;
+
+			if (i >= 2)
+				best = Math.min(best, t);
+		}
+
+		return (int)Math.max(1, iterations * 1000000L / Math.max(best, 1));
+	}
+
+	/**
+	 * Main loop. Only returns on fatal errors.
+	 */
+	public void serve() throws IOException
+	{
+		long lastBeat = System.currentTimeMillis();
+
+		while (true)
+		{
+			selector.select(Node.HEARTBEAT_INTERVAL / 2);
+
+			// Jobs finished by the pool
+			RenderJob rj;
+			while ((rj = finished.poll()) != null)
+			{
+				jobsRunning--;
+				if (rj.output != null)
+					rj.output.release();
+
+				Connection c = rj.conn;
+				if (c.closed)
+				{
+					c.running.remove(rj);
+					release(rj.reply.memory);
+					if (c.running.isEmpty() && c.codec != null)
+						c.codec.end();
+					admitWaiting();
+					continue;
+				}
+
+				try
+				{
+					c.jobDone(rj);
+				}
+				catch (IOException e)
+				{
+					fail(c, e);
+				}
+				admitWaiting();
+			}
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext())
+			{
+				SelectionKey k = it.next();
+				it.remove();
+
+				if (!k.isValid())
+					continue;
+
+				if (k.isAcceptable())
+				{
+					accept();
+					continue;
+				}
+
+				Connection c = (Connection)k.attachment();
+				try
+				{
+					if (k.isReadable())
+						c.read();
+					if (k.isValid() && k.isWritable())
+						c.write();
+				}
+				catch (IOException e)
+				{
+					fail(c, e);
+				}
+			}
+
+			long now = System.currentTimeMillis();
+			if (now - lastBeat >= Node.HEARTBEAT_INTERVAL / 2)
+			{
+				lastBeat = now;
+				heartbeats(now);
+			}
+		}
+	}
+
+	/**
+	 * Internal use: Let all clients which are waiting know that we're
+	 * still alive.
+	 */
+	private void heartbeats(long now)
+	{
+		ArrayList<Connection> all = new ArrayList<Connection>();
+		for (SelectionKey k : selector.keys())
+			if (k.attachment() instanceof Connection)
+				all.add((Connection)k.attachment());
+
+		for (Connection c : all)
+		{
+			try
+			{
+				c.heartbeat(now);
+			}
+			catch (IOException e)
+			{
+				fail(c, e);
+			}
+		}
+	}
+
+	/**
+	 * Internal use: Capabilities of this node.
+	 */
+	private int supported()
+	{
+		return Node.CAPS_SUPPORTED
+			| (outputDir != null ? Node.CAP_SHAREDFILE : 0);
+	}
+
+	/**
+	 * Internal use: Open a file below the output directory for CMD_OUTPUT.
+	 * It must exist and have the expected size, i.e. the master has
+	 * already created it and we see the same file.
+	 */
+	private SharedFile openShared(String path, long offset, int stride,
+			long length) throws IOException
+	{
+		if (outputDir == null)
+			throw new IOException("No output directory.");
+
+		File f = new File(outputDir, path).getCanonicalFile();
+		if (!f.getPath().startsWith(outputDir.getPath() + File.separator))
+			throw new IOException("Outside of the output directory.");
+		if (!f.isFile())
+			throw new IOException("No such file.");
+		if (f.length() != length)
+			throw new IOException("Size is " + f.length() + " instead of "
+					+ length + ".");
+		if (offset < 0 || stride <= 0 || offset > length)
+			throw new IOException("Invalid layout.");
+
+		SharedFile s = new SharedFile();
+		s.chan   = new RandomAccessFile(f, "rw").getChannel();
+		s.offset = offset;
+		s.stride = stride;
+		s.length = length;
+		return s;
+	}
+
+	/**
+	 * Internal use: A buffer holding some ints, ready to be sent.
+	 */
+	private static ByteBuffer ints(int... v)
+	{
+		ByteBuffer b = ByteBuffer.allocate(v.length * 4);
+		for (int i : v)
+			b.putInt(i);
+		b.flip();
+		return b;
+	}
+
+	/**
+	 * Internal use: Accept a new client if there's room for it.
+	 */
+	private void accept() throws IOException
+	{
+		SocketChannel ch = server.accept();
+		if (ch == null)
+			return;
+
+		int ID = ++lastID;
+		if (connections >= maxConnections)
+		{
+			err(ID, "Too many connections, rejecting " + ch);
+			ch.close();
+			return;
+		}
+
+		ch.configureBlocking(false);
+		ch.socket().setTcpNoDelay(true);
+
+		Connection c = new Connection(ID, ch);
+		c.key = ch.register(selector, SelectionKey.OP_READ, c);
+		connections++;
+		msg(ID, "Connected: " + ch);
+	}
+
+	/**
+	 * Internal use: Close a connection after an error.
+	 */
+	private void fail(Connection c, IOException e)
+	{
+		err(c.ID, "Closing connection: "
+				+ e.getClass().getSimpleName() + ", "
+				+ "\"" + e.getMessage() + "\"");
+		c.close();
+	}
+
+	/**
+	 * Internal use: Memory needed by a job with "num" pixels: The buffer
+	 * it's rendered into plus the encoded payload.
+	 */
+	private static long jobCost(long num)
+	{
+		return num * 8;
+	}
+
+	/**
+	 * Internal use: Try to reserve the resources of the pending job of
+	 * "c". Connections which have been waiting before go first. If the
+	 * job can't be admitted, "c" is queued.
+	 */
+	private boolean admit(Connection c)
+	{
+		if ((waiting.isEmpty() || waiting.peekFirst() == c) && canRun(c))
+		{
+			if (waiting.peekFirst() == c)
+				waiting.removeFirst();
+
+			jobsRunning++;
+			memoryUsed += c.pending.peekFirst().cost;
+			return true;
+		}
+
+		if (!waiting.contains(c))
+			waiting.addLast(c);
+		return false;
+	}
+
+	/**
+	 * Internal use: Whether the pending job of "c" fits. If nothing is
+	 * running, any job fits (CMD_ROWS makes sure it's within the budget).
+	 */
+	private boolean canRun(Connection c)
+	{
+		if (jobsRunning == 0)
+			return true;
+
+		return jobsRunning < maxJobs
+			&& memoryUsed + c.pending.peekFirst().cost <= memoryBudget;
+	}
+
+	/**
+	 * Internal use: Give released memory back to the budget.
+	 */
+	private void release(long memory)
+	{
+		memoryUsed -= memory;
+	}
+
+	/**
+	 * Internal use: Start waiting jobs as long as there are resources.
+	 */
+	private void admitWaiting()
+	{
+		while (!waiting.isEmpty())
+		{
+			Connection c = waiting.peekFirst();
+			if (!admit(c))
+				return;
+
+			c.startJob();
+
+			// Its next job has to wait for its turn again.
+			if (!c.pending.isEmpty() && !waiting.contains(c))
+				waiting.addLast(c);
+
+			try
+			{
+				// Continue with the commands after the job.
+				c.process();
+			}
+			catch (IOException e)
+			{
+				fail(c, e);
+			}
+		}
+	}
+
+	/**
+	 * Internal use: Render rows of a job. Runs on the pool.
+	 */
+	private void renderRows(RenderJob rj)
+	{
+		try
+		{
+			while (rj.error == null && !rj.aborted)
+			{
+				int row = rj.next.getAndIncrement();
+				if (row >= rj.end)
+					break;
+
+				rj.rend.renderPass(row, row + 1, rj.px,
+						(row - rj.start) * rj.w);
+			}
+		}
+		catch (Throwable e)
+		{
+			rj.error = e;
+		}
+
+		if (rj.remaining.decrementAndGet() > 0)
+			return;
+
+		// This was the last thread working on the job.
+		try
+		{
+			if (rj.error == null && !rj.aborted)
+			{
+				rj.time = (double)(System.nanoTime() - rj.started) / 1e9;
+
+				int num = (rj.end - rj.start) * rj.w;
+				int bytes = Node.valueBytes(rj.values);
+
+				if (rj.values == RawWriter.FORMAT_FIXED16)
+					for (int i = 0; i < num; i++)
+						rj.px[i] = RawWriter.toFixed(
+								Float.intBitsToFloat(rj.px[i]));
+
+				int[] px = rj.px;
+				if (rj.reduce > 1)
+				{
+					px = ImageOperations.resize2(px, rj.w,
+							rj.end - rj.start, rj.reduce);
+					num /= rj.reduce * rj.reduce;
+				}
+
+				if (rj.output != null)
+				{
+					rj.output.write(px, rj.start / rj.reduce,
+							rj.end / rj.reduce, rj.w / rj.reduce);
+					rj.payload = ByteBuffer.allocate(0);
+				}
+				else if (rj.codec != null)
+					rj.payload = rj.codec.encode(px, 0, num, bytes);
+				else
+					rj.payload = PixelCodec.encodeRaw(px, 0, num, bytes);
+			}
+		}
+		catch (Throwable e)
+		{
+			rj.error = e;
+		}
+
+		rj.px = null;
+		finished.offer(rj);
+		selector.wakeup();
+	}
+
+	private void msg(int ID, String m)
+	{
+		System.out.println("(II) " + Node.st() + " [" + ID + "] " + m);
+	}
+
+	private void err(int ID, String m)
+	{
+		System.err.println("(EE) " + Node.st() + " [" + ID + "] " + m);
+	}
+}
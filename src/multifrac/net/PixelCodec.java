@@ -0,0 +1,280 @@
+/*
+	Copyright 2009 Peter Hofmann
+
+	This file is part of Multifrac.
+
+	Multifrac is free software: you can redistribute it and/or modify it
+	under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Multifrac is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Multifrac. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package multifrac.net;
+
+import java.io.*;
+import java.nio.*;
+import java.util.zip.*;
+
+/**
+ * Compressed pixel payloads. Only used if both sides have agreed on
+ * Node.CAP_COMPRESS. A payload looks like this:
+ *
+ *    int    PAYLOAD_RAW or PAYLOAD_RLE_DEFLATE
+ *
+ * PAYLOAD_RAW is followed by the pixels just like an uncompressed reply:
+ * Big endian ints or, for 16 bit values, shorts. PAYLOAD_RLE_DEFLATE is
+ * followed by
+ *
+ *    int    length of the compressed data
+ *    ...    compressed data
+ *
+ * The compressed data is a Deflate stream (zlib format) of runs. Each
+ * run is the run length as a varint (7 bits per byte, least significant
+ * group first, high bit set if more bytes follow) plus the pixel value
+ * (big endian, 2 or 4 bytes). Fractals contain long runs of the same color,
+ * especially inside the set, so this is a lot smaller than raw data.
+ */
+public class PixelCodec
+{
+	public static final int PAYLOAD_RAW         = 0;
+	public static final int PAYLOAD_RLE_DEFLATE = 1;
+
+	private Deflater def = new Deflater(Deflater.BEST_SPEED);
+	private Inflater inf = new Inflater();
+	private byte[] rle = new byte[0];
+	private byte[] zip = new byte[0];
+
+	// Statistics
+	public long rawBytes = 0;
+	public long sentBytes = 0;
+
+	/**
+	 * Encode "num" pixels starting at index "off" as a complete payload.
+	 * Each pixel has "bytes" bytes (2 or 4). Falls back to raw data if
+	 * compression doesn't pay off. The buffer is ready to be written.
+	 */
+	public synchronized ByteBuffer encode(int[] px, int off, int num,
+			int bytes)
+	{
+		int rlen = encodeRuns(px, off, num, bytes);
+
+		def.reset();
+		def.setInput(rle, 0, rlen);
+		def.finish();
+
+		if (zip.length < rlen + 64)
+			zip = new byte[rlen + 64];
+
+		int zlen = 0;
+		while (!def.finished() && zlen < zip.length)
+			zlen += def.deflate(zip, zlen, zip.length - zlen);
+
+		rawBytes += (long)num * bytes;
+
+		ByteBuffer buf;
+		if (!def.finished() || zlen >= num * bytes)
+		{
+			buf = ByteBuffer.allocate(4 + num * bytes);
+			buf.putInt(PAYLOAD_RAW);
+			putRaw(buf, px, off, num, bytes);
+		}
+		else
+		{
+			buf = ByteBuffer.allocate(8 + zlen);
+			buf.putInt(PAYLOAD_RLE_DEFLATE);
+			buf.putInt(zlen);
+			buf.put(zip, 0, zlen);
+		}
+
+		sentBytes += buf.position();
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Encode pixels without any compression, as sent to clients which
+	 * haven't enabled it. The buffer is ready to be written.
+	 */
+	public static ByteBuffer encodeRaw(int[] px, int off, int num, int bytes)
+	{
+		ByteBuffer buf = ByteBuffer.allocate(num * bytes);
+		putRaw(buf, px, off, num, bytes);
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Receive "num" pixels of "bytes" bytes each and store them at index
+	 * "off".
+	 */
+	public void read(PixelIO io, int[] px, int off, int num, int bytes)
+		throws IOException
+	{
+		int type = io.in.readInt();
+		if (type == PAYLOAD_RAW)
+		{
+			if (bytes == 2)
+				io.readShorts(px, off, num);
+			else
+				io.readInts(px, off, num);
+			return;
+		}
+		else if (type != PAYLOAD_RLE_DEFLATE)
+			throw new IOException("PixelCodec: Unknown payload type " + type);
+
+		int zlen = io.in.readInt();
+		int max = maxRunBytes(num, bytes);
+		if (zlen < 0 || zlen > max + 1024)
+			throw new IOException("PixelCodec: Invalid payload length.");
+
+		if (zip.length < zlen)
+			zip = new byte[zlen];
+		io.in.readFully(zip, 0, zlen);
+
+		if (rle.length < max)
+			rle = new byte[max];
+
+		inf.reset();
+		inf.setInput(zip, 0, zlen);
+
+		int rlen = 0;
+		try
+		{
+			while (!inf.finished() && rlen < rle.length)
+			{
+				int n = inf.inflate(rle, rlen, rle.length - rlen);
+				if (n == 0 && (inf.needsInput() || inf.needsDictionary()))
+					break;
+				rlen += n;
+			}
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException("PixelCodec: Corrupt payload.", e);
+		}
+
+		if (!inf.finished())
+			throw new IOException("PixelCodec: Truncated payload.");
+
+		decodeRuns(rlen, px, off, num, bytes);
+	}
+
+	/**
+	 * Internal use: Put pixels as big endian ints or shorts.
+	 */
+	private static void putRaw(ByteBuffer buf, int[] px, int off, int num,
+			int bytes)
+	{
+		if (bytes == 2)
+		{
+			for (int i = 0; i < num; i++)
+				buf.putShort((short)px[off + i]);
+		}
+		else
+		{
+			buf.asIntBuffer().put(px, off, num);
+			buf.position(buf.position() + num * 4);
+		}
+	}
+
+	public synchronized void end()
+	{
+		def.end();
+		inf.end();
+	}
+
+	/**
+	 * Internal use: Worst case size of the run data.
+	 */
+	private static int maxRunBytes(int num, int bytes)
+	{
+		return num * (bytes + 1) + 9;
+	}
+
+	/**
+	 * Internal use: Encode runs into "rle". Returns the length.
+	 */
+	private int encodeRuns(int[] px, int off, int num, int bytes)
+	{
+		int max = maxRunBytes(num, bytes);
+		if (rle.length < max)
+			rle = new byte[max];
+
+		int at = 0;
+		int end = off + num;
+		int i = off;
+		while (i < end)
+		{
+			int v = px[i];
+			int j = i + 1;
+			while (j < end && px[j] == v)
+				j++;
+
+			int run = j - i;
+			while (run >= 0x80)
+			{
+				rle[at++] = (byte)(run | 0x80);
+				run >>>= 7;
+			}
+			rle[at++] = (byte)run;
+
+			if (bytes == 4)
+			{
+				rle[at++] = (byte)(v >> 24);
+				rle[at++] = (byte)(v >> 16);
+			}
+			rle[at++] = (byte)(v >>  8);
+			rle[at++] = (byte)(v      );
+
+			i = j;
+		}
+
+		return at;
+	}
+
+	/**
+	 * Internal use: Decode "rlen" bytes of runs from "rle".
+	 */
+	private void decodeRuns(int rlen, int[] px, int off, int num, int bytes)
+		throws IOException
+	{
+		int at = 0;
+		int i = off;
+		int end = off + num;
+		while (at < rlen)
+		{
+			int run = 0;
+			int shift = 0;
+			int b;
+			do
+			{
+				if (at >= rlen || shift > 28)
+					throw new IOException("PixelCodec: Corrupt run.");
+				b = rle[at++];
+				run |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+
+			if (at + bytes > rlen || run <= 0 || run > end - i)
+				throw new IOException("PixelCodec: Corrupt run.");
+
+			int v = 0;
+			for (int k = 0; k < bytes; k++)
+				v = (v << 8) | (rle[at++] & 0xFF);
+
+			while (run-- > 0)
+				px[i++] = v;
+		}
+
+		if (i != end)
+			throw new IOException("PixelCodec: Payload too short.");
+	}
+}
@@ -0,0 +1,334 @@
+/*
+	Copyright 2009 Peter Hofmann
+
+	This file is part of Multifrac.
+
+	Multifrac is free software: you can redistribute it and/or modify it
+	under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Multifrac is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Multifrac. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package multifrac.net;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Buffered I/O on a SocketChannel. Commands are read and written using
+ * the "in" and "out" streams while pixel data is moved in bulk between
+ * int[]-arrays and the channel. Both share the same buffers, so they can
+ * be mixed freely. Everything is big endian, just like DataInputStream
+ * and DataOutputStream, so the protocol stays the same.
+ *
+ * Pending output is flushed before blocking on a read.
+ *
+ * Optionally, reads and writes time out if the peer doesn't make any
+ * progress. The channel is then switched to non-blocking mode and waits
+ * on a Selector of its own.
+ */
+public class PixelIO
+{
+	public static final int BUFSIZE = 256 * 1024;
+	public static final int CONNECT_TIMEOUT = 10000;
+
+	private SocketChannel ch = null;
+	private Selector sel = null;
+	private SelectionKey key = null;
+	private int timeout = 0;
+	private ByteBuffer inBuf  = null;
+	private ByteBuffer outBuf = null;
+
+	public DataInputStream  in  = null;
+	public DataOutputStream out = null;
+
+	/**
+	 * Connect to the given host. Gives up after CONNECT_TIMEOUT ms.
+	 */
+	public static PixelIO connect(String host, int port) throws IOException
+	{
+		SocketChannel ch = SocketChannel.open();
+		try
+		{
+			ch.socket().connect(new InetSocketAddress(host, port),
+					CONNECT_TIMEOUT);
+			ch.socket().setKeepAlive(true);
+		}
+		catch (IOException e)
+		{
+			ch.close();
+			throw e;
+		}
+		return new PixelIO(ch);
+	}
+
+	public PixelIO(SocketChannel ch) throws IOException
+	{
+		this.ch = ch;
+		ch.configureBlocking(true);
+		ch.socket().setTcpNoDelay(true);
+
+		inBuf  = ByteBuffer.allocateDirect(BUFSIZE);
+		outBuf = ByteBuffer.allocateDirect(BUFSIZE);
+
+		// Nothing has been read yet.
+		inBuf.flip();
+
+		in = new DataInputStream(new InputStream()
+		{
+			@Override
+			public int read() throws IOException
+			{
+				if (!fill(1))
+					return -1;
+				return inBuf.get() & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException
+			{
+				if (len == 0)
+					return 0;
+				if (!fill(1))
+					return -1;
+
+				int n = Math.min(len, inBuf.remaining());
+				inBuf.get(b, off, n);
+				return n;
+			}
+		});
+
+		out = new DataOutputStream(new OutputStream()
+		{
+			@Override
+			public void write(int b) throws IOException
+			{
+				if (!outBuf.hasRemaining())
+					drain();
+				outBuf.put((byte)b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				while (len > 0)
+				{
+					if (!outBuf.hasRemaining())
+						drain();
+
+					int n = Math.min(len, outBuf.remaining());
+					outBuf.put(b, off, n);
+					off += n;
+					len -= n;
+				}
+			}
+
+			@Override
+			public void flush() throws IOException
+			{
+				drain();
+			}
+		});
+	}
+
+	public SocketChannel getChannel()
+	{
+		return ch;
+	}
+
+	/**
+	 * Let reads and writes fail with a SocketTimeoutException if nothing
+	 * happens for "ms" milliseconds. 0 means wait forever.
+	 */
+	public void setTimeout(int ms) throws IOException
+	{
+		timeout = ms;
+
+		if (ms > 0 && sel == null)
+		{
+			sel = Selector.open();
+			ch.configureBlocking(false);
+			key = ch.register(sel, 0);
+		}
+	}
+
+	/**
+	 * Read "num" ints into "px" beginning at index "off".
+	 */
+	public void readInts(int[] px, int off, int num) throws IOException
+	{
+		while (num > 0)
+		{
+			if (!fill(4))
+				throw new EOFException("PixelIO: Peer hung up.");
+
+			int n = Math.min(num, inBuf.remaining() / 4);
+			inBuf.asIntBuffer().get(px, off, n);
+			inBuf.position(inBuf.position() + n * 4);
+
+			off += n;
+			num -= n;
+		}
+	}
+
+	/**
+	 * Write "num" ints taken from "px" beginning at index "off". They're
+	 * sent once the buffer is full or "out" is flushed.
+	 */
+	public void writeInts(int[] px, int off, int num) throws IOException
+	{
+		while (num > 0)
+		{
+			if (outBuf.remaining() < 4)
+				drain();
+
+			int n = Math.min(num, outBuf.remaining() / 4);
+			outBuf.asIntBuffer().put(px, off, n);
+			outBuf.position(outBuf.position() + n * 4);
+
+			off += n;
+			num -= n;
+		}
+	}
+
+	/**
+	 * Read "num" unsigned shorts into "px" beginning at index "off".
+	 */
+	public void readShorts(int[] px, int off, int num) throws IOException
+	{
+		while (num > 0)
+		{
+			if (!fill(2))
+				throw new EOFException("PixelIO: Peer hung up.");
+
+			int n = Math.min(num, inBuf.remaining() / 2);
+			for (int i = 0; i < n; i++)
+				px[off++] = inBuf.getShort() & 0xFFFF;
+
+			num -= n;
+		}
+	}
+
+	/**
+	 * Write the lower 16 bits of "num" ints taken from "px" beginning at
+	 * index "off".
+	 */
+	public void writeShorts(int[] px, int off, int num) throws IOException
+	{
+		while (num > 0)
+		{
+			if (outBuf.remaining() < 2)
+				drain();
+
+			int n = Math.min(num, outBuf.remaining() / 2);
+			for (int i = 0; i < n; i++)
+				outBuf.putShort((short)px[off++]);
+
+			num -= n;
+		}
+	}
+
+	/**
+	 * Close the channel. This may be called by another thread to abort a
+	 * blocking read or write.
+	 */
+	public void close() throws IOException
+	{
+		ch.close();
+
+		// Wakes up a thread waiting in await().
+		if (sel != null)
+			sel.close();
+	}
+
+	/**
+	 * Internal use: Make sure there are at least "min" bytes in the
+	 * input buffer. Returns false on EOF.
+	 */
+	private boolean fill(int min) throws IOException
+	{
+		if (inBuf.remaining() >= min)
+			return true;
+
+		// We're about to block: Send what we have, the peer may be
+		// waiting for it.
+		drain();
+
+		inBuf.compact();
+		try
+		{
+			while (inBuf.position() < min)
+			{
+				int n = ch.read(inBuf);
+				if (n < 0)
+					return false;
+				if (n == 0)
+					await(SelectionKey.OP_READ);
+			}
+		}
+		finally
+		{
+			inBuf.flip();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Internal use: Write the output buffer to the channel.
+	 */
+	private void drain() throws IOException
+	{
+		outBuf.flip();
+		try
+		{
+			while (outBuf.hasRemaining())
+				if (ch.write(outBuf) == 0)
+					await(SelectionKey.OP_WRITE);
+		}
+		finally
+		{
+			outBuf.compact();
+		}
+	}
+
+	/**
+	 * Internal use: Wait until the channel is ready for "op". Only used
+	 * in non-blocking mode, i.e. if there's a timeout.
+	 */
+	private void await(int op) throws IOException
+	{
+		int ready = 0;
+		try
+		{
+			key.interestOps(op);
+			ready = sel.select(timeout);
+		}
+		catch (CancelledKeyException e)
+		{
+			// Closed by another thread.
+			throw new ClosedChannelException();
+		}
+		catch (ClosedSelectorException e)
+		{
+			throw new ClosedChannelException();
+		}
+
+		if (!ch.isOpen())
+			throw new ClosedChannelException();
+		if (ready == 0)
+			throw new SocketTimeoutException("PixelIO: Peer didn't respond "
+					+ "within " + timeout + " ms.");
+		sel.selectedKeys().clear();
+	}
+}
@@ -0,0 +1,64 @@
+/*
+	Copyright 2009 Peter Hofmann
+
+	This file is part of Multifrac.
+
+	Multifrac is free software: you can redistribute it and/or modify it
+	under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Multifrac is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Multifrac. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package multifrac.net;
+
+import java.io.*;
+
+/**
+ * An image on a file system which the master shares with its nodes.
+ * Nodes with CAP_SHAREDFILE write the rows of their jobs right into it
+ * (see Node.CMD_OUTPUT). Rows are stored as RGB, "stride" bytes apart,
+ * beginning at "offset".
+ */
+public class SharedOutput
+{
+	// Relative to the shared directory, separated by "/".
+	public final String path;
+	public final long offset;
+	public final int stride;
+	public final long length;
+
+	public SharedOutput(String path, long offset, int stride, long length)
+	{
+		this.path   = path;
+		this.offset = offset;
+		this.stride = stride;
+		this.length = length;
+	}
+
+	/**
+	 * Path of "f" relative to "root" or null if it's not below it.
+	 */
+	public static String relativePath(File root, File f) throws IOException
+	{
+		String r = root.getCanonicalPath() + File.separator;
+		String p = f.getCanonicalPath();
+		if (!p.startsWith(r))
+			return null;
+
+		return p.substring(r.length()).replace(File.separatorChar, '/');
+	}
+
+	@Override
+	public String toString()
+	{
+		return path;
+	}
+}
@@ -0,0 +1,152 @@
+/*
+	Copyright 2009 Peter Hofmann
+
+	This file is part of Multifrac.
+
+	Multifrac is free software: you can redistribute it and/or modify it
+	under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	Multifrac is distributed in the hope that it will be useful, but
+	WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+	General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with Multifrac. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package multifrac.net;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
+/**
+ * Threads for the clients of one distributed render. They spend nearly
+ * all of their time waiting for the network, so virtual threads are used
+ * if the runtime has them (Java 21 and newer): The master then doesn't
+ * need a thread stack per remote CPU. Otherwise, regular daemon threads
+ * are used.
+ *
+ * Local render threads keep a CPU busy instead. Virtual threads aren't
+ * preempted, so they'd hold up the clients: These always get regular
+ * threads.
+ *
+ * The pool lives as long as the render: Once it's done, the pool is shut
+ * down and the clients are awaited.
+ */
+public class WorkerPool
+{
+	private ExecutorService exec = null;
+	private ExecutorService busy = null;
+	private boolean virtual = false;
+
+	public WorkerPool(final String name)
+	{
+		ThreadFactory tf = virtualThreadFactory(name);
+		virtual = (tf != null);
+
+		if (tf == null)
+			tf = daemonThreadFactory(name);
+
+		exec = newThreadPerTaskExecutor(tf);
+		if (exec == null)
+			exec = Executors.newCachedThreadPool(tf);
+
+		busy = Executors.newCachedThreadPool(
+				daemonThreadFactory(name + " local"));
+	}
+
+	/**
+	 * Whether virtual threads are used.
+	 */
+	public boolean isVirtual()
+	{
+		return virtual;
+	}
+
+	/**
+	 * Run "r" on a thread of its own.
+	 */
+	public void execute(Runnable r)
+	{
+		exec.execute(r);
+	}
+
+	/**
+	 * Run "r" on a regular thread of its own. Use this for rendering.
+	 */
+	public void executeBusy(Runnable r)
+	{
+		busy.execute(r);
+	}
+
+	/**
+	 * Don't accept new clients and wait for the running ones to quit.
+	 */
+	public void shutdown() throws InterruptedException
+	{
+		exec.shutdown();
+		busy.shutdown();
+		while (!exec.awaitTermination(1, TimeUnit.SECONDS));
+		while (!busy.awaitTermination(1, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Internal use: A factory for regular daemon threads.
+	 */
+	private static ThreadFactory daemonThreadFactory(final String name)
+	{
+		return new ThreadFactory()
+		{
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, name + " " + (count++));
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Internal use: A factory for virtual threads or null if there are
+	 * none. Reflection keeps this working on older runtimes.
+	 */
+	private static ThreadFactory virtualThreadFactory(String name)
+	{
+		try
+		{
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> bc = Class.forName("java.lang.Thread$Builder");
+			builder = bc.getMethod("name", String.class, long.class)
+				.invoke(builder, name + " ", 0L);
+			return (ThreadFactory)bc.getMethod("factory").invoke(builder);
+		}
+		catch (Exception e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Internal use: Executors.newThreadPerTaskExecutor() if available
+	 * (Java 21), null otherwise.
+	 */
+	private static ExecutorService newThreadPerTaskExecutor(ThreadFactory tf)
+	{
+		try
+		{
+			Method m = Executors.class.getMethod("newThreadPerTaskExecutor",
+					ThreadFactory.class);
+			return (ExecutorService)m.invoke(null, tf);
+		}
+		catch (Exception e)
+		{
+			return null;
+		}
+	}
+}